@@ -47,4 +47,8 @@ public class AppConfig {
         return "";
     }
     
+    public String hmacEncryptedStoreDirectory() {
+        return "";
+    }
+    
 }
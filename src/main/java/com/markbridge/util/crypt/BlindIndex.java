@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2016, Mark Bridge <j2eewebtier@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.markbridge.util.crypt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.keyczar.KeySystem;
+import org.keyczar.Signer;
+import org.keyczar.exceptions.KeyczarException;
+
+/**
+ * Blind index tokens for equality lookups on encrypted columns - store 
+ * token(value) next to the ciphertext and query with lookupTokens(value)
+ * 
+ * Tokens are keyed HMACs from the KeySystem HMAC store so are deterministic 
+ * for a key version, and carry the key hash so the version that made them is
+ * known.  After a rotation new tokens are under the new primary, lookups 
+ * match any active version until old rows are re-indexed
+ * 
+ * The column name is mixed in so equal values in different columns do not
+ * have equal tokens
+ * 
+ * @author Mark Bridge <j2eewebtier@gmail.com>
+ */
+public class BlindIndex {
+    
+    private String storeDirectory = KeySystem.hmacEncryptedStoreDirectory;
+    
+    private final String column;
+    
+    /**
+     * @param column the indexed column, any name that is fixed for the column
+     */
+    public BlindIndex(String column) {
+        this.column = column;
+    }
+    
+    /**
+     * @param value
+     * @return the token to store under the primary key, null if fail or the
+     * value is null - a null is not indexed, as in tokens
+     */
+    public String token(String value) {
+        
+        String retVal = null;
+        if(value == null) {
+            return retVal;
+        }
+        
+        try {
+            Signer signer = KeySystem.getInstance()
+                    .getSigner(storeDirectory, true);
+            retVal = signer.sign(input(value));
+            KeySystem.recordEncrypt(storeDirectory, KeySystem.getPrimaryVersion(signer), value);
+        } catch (KeyczarException ex) {
+            Logger.getLogger(BlindIndex.class.getName()).log(Level.SEVERE, "Token fail");
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Batch of token for bulk loads - loads the key once for all values
+     * @param values
+     * @return tokens in the same order, null where signing failed
+     */
+    public List<String> tokens(List<String> values) {
+        
+        List<String> retVal = new ArrayList<>(values.size());
+        
+        Signer signer = null;
+        try {
+            signer = KeySystem.getInstance()
+                    .getSigner(storeDirectory, true);
+        } catch (KeyczarException ex) {
+            Logger.getLogger(BlindIndex.class.getName()).log(Level.SEVERE, "Token fail");
+        }
+        
+        for(String value : values) {
+            String token = null;
+            if(signer != null && value != null) {
+                try {
+                    token = signer.sign(input(value));
+                    KeySystem.recordEncrypt(storeDirectory, KeySystem.getPrimaryVersion(signer), value);
+                } catch (KeyczarException ex) {
+                    Logger.getLogger(BlindIndex.class.getName()).log(Level.SEVERE, "Token fail");
+                }
+            }
+            retVal.add(token);
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * @param value
+     * @return the value's token under each primary and active key version, 
+     * primary first, to look up with eg. WHERE token IN (...) - empty for a
+     * null value, which has no token
+     */
+    public List<String> lookupTokens(String value) {
+        
+        List<String> retVal = new ArrayList<>();
+        if(value == null) {
+            return retVal;
+        }
+        
+        try {
+            for(int version : KeySystem.getActiveVersions(storeDirectory)) {
+                Signer signer = KeySystem.getInstance()
+                        .getSigner(storeDirectory, true, version);
+                retVal.add(signer.sign(input(value)));
+            }
+        } catch (KeyczarException ex) {
+            Logger.getLogger(BlindIndex.class.getName()).log(Level.SEVERE, "Token fail");
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * length prefix so column "a:" value "b" differs from column "a" value ":b"
+     */
+    private String input(String value) {
+        return column.length() + ":" + column + value;
+    }
+}
@@ -25,6 +25,9 @@
  */
 package com.markbridge.util.crypt;
 
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.keyczar.Crypter;
@@ -45,18 +48,30 @@ public class Crypt {
     
     private String localStoreDirectory = KeySystem.asymmetricEncryptedStoreDirectory;
     
+    private volatile ReEncryptionQueue reEncryptionQueue;
+    
     /**
      * TODO: use the public key of the destination application
      * @param plaintext
      * @return ciphertext
      */
     public String remoteEncrypt(String plaintext) {
+        return remoteEncrypt(plaintext, "destinationPublicKeyStoreDirectory");
+    }
+    
+    /**
+     * @param plaintext
+     * @param destinationPublicKeyStoreDirectory public (plaintext) key store 
+     * of the destination application
+     * @return ciphertext, null if fail
+     */
+    public String remoteEncrypt(String plaintext, String destinationPublicKeyStoreDirectory) {
         
         String retVal = null;
         
         try {
             Encrypter enc = KeySystem.getInstance()
-                    .getEncrypter("destinationPublicKeyStoreDirectory", false);
+                    .getEncrypter(destinationPublicKeyStoreDirectory, false);
             retVal = enc.encrypt(plaintext);
         } catch (KeyczarException ex) {
             Logger.getLogger(Crypt.class.getName()).log(Level.SEVERE, "Encryption fail");
@@ -79,6 +94,7 @@ public class Crypt {
                 Crypter crypter = KeySystem.getInstance()
                         .getCrypter(localStoreDirectory, true);
                 retVal = crypter.encrypt(plaintext);
+                KeySystem.recordEncrypt(localStoreDirectory, KeySystem.getPrimaryVersion(crypter), plaintext);
             } catch (KeyczarException ex) {
                 Logger.getLogger(Crypt.class.getName()).log(Level.SEVERE, "Encryption fail");
             }
@@ -116,6 +132,10 @@ public class Crypt {
     
     /**
      * Decrypt will find the right key ... no need to synchronize
+     * 
+     * Counts the decrypt against the key version used (see 
+     * KeySystem.getDecryptCounts) and, if re-encryption is enabled, queues
+     * ciphertexts under a non-primary version to be re-encrypted
      * @param ciphertext
      * @return 
      */
@@ -126,7 +146,7 @@ public class Crypt {
         try {
             Crypter crypter = KeySystem.getInstance()
                     .getCrypter(localStoreDirectory, true);
-            retVal = crypter.decrypt(ciphertext);
+            retVal = decrypt(crypter, ciphertext);
         } catch (KeyczarException ex) {
             Logger.getLogger(Crypt.class.getName()).log(Level.SEVERE, "Encryption fail");
         }
@@ -134,6 +154,222 @@ public class Crypt {
         return retVal;
     }
     
+    /**
+     * Encrypt once for several destinations - the plaintext is encrypted with
+     * a random key and only that key is encrypted with each destination's 
+     * public key, so the cost of encrypting the plaintext does not grow with 
+     * the number of destinations.  Each destination opens it with openEnvelope.
+     * The result is an envelope, not a keyczar ciphertext as from 
+     * remoteEncrypt, so only openEnvelope reads it
+     * @param plaintext
+     * @param destinationPublicKeyStoreDirectories
+     * @return envelope, null if fail
+     * @throws IllegalArgumentException if there are no destinations
+     */
+    public String sealForDestinations(String plaintext, List<String> destinationPublicKeyStoreDirectories) {
+        
+        String retVal = null;
+        
+        try {
+            List<Encrypter> recipients = new ArrayList<>(destinationPublicKeyStoreDirectories.size());
+            for(String destination : destinationPublicKeyStoreDirectories) {
+                recipients.add(KeySystem.getInstance().getEncrypter(destination, false));
+            }
+            retVal = Envelope.seal(plaintext, recipients);
+        } catch (KeyczarException | GeneralSecurityException ex) {
+            Logger.getLogger(Crypt.class.getName()).log(Level.SEVERE, "Encryption fail");
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Open an envelope from sealForDestinations with the local private keys, 
+     * keyczar ciphertexts go to localDecrypt
+     * @param envelope
+     * @return plaintext, null if fail
+     */
+    public String openEnvelope(String envelope) {
+        
+        String retVal = null;
+        
+        try {
+            Crypter crypter = KeySystem.getInstance()
+                    .getCrypter(localStoreDirectory, true);
+            retVal = Envelope.open(envelope, crypter);
+        } catch (KeyczarException | GeneralSecurityException ex) {
+            Logger.getLogger(Crypt.class.getName()).log(Level.SEVERE, "Encryption fail");
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Batch of remoteEncrypt - loads the destination key once for all values
+     * @param plaintexts
+     * @param destinationPublicKeyStoreDirectory
+     * @return ciphertexts in the same order, null where encryption failed
+     */
+    public List<String> remoteEncrypt(List<String> plaintexts, String destinationPublicKeyStoreDirectory) {
+        
+        List<String> retVal = new ArrayList<>(plaintexts.size());
+        
+        Encrypter enc = null;
+        try {
+            enc = KeySystem.getInstance()
+                    .getEncrypter(destinationPublicKeyStoreDirectory, false);
+        } catch (KeyczarException ex) {
+            Logger.getLogger(Crypt.class.getName()).log(Level.SEVERE, "Encryption fail");
+        }
+        
+        for(String plaintext : plaintexts) {
+            String ciphertext = null;
+            if(enc != null && plaintext != null) {
+                try {
+                    ciphertext = enc.encrypt(plaintext);
+                } catch (KeyczarException ex) {
+                    Logger.getLogger(Crypt.class.getName()).log(Level.SEVERE, "Encryption fail");
+                }
+            }
+            retVal.add(ciphertext);
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Batch of localEncrypt - loads the key once and holds the lock once for
+     * all values
+     * @param plaintexts
+     * @return ciphertexts in the same order, null where encryption failed
+     */
+    public List<String> localEncrypt(List<String> plaintexts) {
+        
+        List<String> retVal = new ArrayList<>(plaintexts.size());
+        
+        synchronized ("crypt") {
+            Crypter crypter = null;
+            try {
+                crypter = KeySystem.getInstance()
+                        .getCrypter(localStoreDirectory, true);
+            } catch (KeyczarException ex) {
+                Logger.getLogger(Crypt.class.getName()).log(Level.SEVERE, "Encryption fail");
+            }
+            
+            for(String plaintext : plaintexts) {
+                String ciphertext = null;
+                if(crypter != null && plaintext != null) {
+                    try {
+                        ciphertext = crypter.encrypt(plaintext);
+                        KeySystem.recordEncrypt(localStoreDirectory, KeySystem.getPrimaryVersion(crypter), plaintext);
+                    } catch (KeyczarException ex) {
+                        Logger.getLogger(Crypt.class.getName()).log(Level.SEVERE, "Encryption fail");
+                    }
+                }
+                retVal.add(ciphertext);
+            }
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Batch of localDecrypt - loads the key once for all values
+     * @param ciphertexts
+     * @return plaintexts in the same order, null where decryption failed
+     */
+    public List<String> localDecrypt(List<String> ciphertexts) {
+        
+        List<String> retVal = new ArrayList<>(ciphertexts.size());
+        
+        Crypter crypter = null;
+        try {
+            crypter = KeySystem.getInstance()
+                    .getCrypter(localStoreDirectory, true);
+        } catch (KeyczarException ex) {
+            Logger.getLogger(Crypt.class.getName()).log(Level.SEVERE, "Encryption fail");
+        }
+        
+        for(String ciphertext : ciphertexts) {
+            String plaintext = null;
+            if(crypter != null && ciphertext != null) {
+                try {
+                    plaintext = decrypt(crypter, ciphertext);
+                } catch (KeyczarException ex) {
+                    Logger.getLogger(Crypt.class.getName()).log(Level.SEVERE, "Encryption fail");
+                }
+            }
+            retVal.add(plaintext);
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * @param ciphertext
+     * @return the version of the local key the ciphertext was encrypted under,
+     * -1 if not found
+     */
+    public int localKeyVersion(String ciphertext) {
+        int retVal = -1;
+        try {
+            Crypter crypter = KeySystem.getInstance()
+                    .getCrypter(localStoreDirectory, true);
+            retVal = KeySystem.getKeyVersion(crypter, ciphertext);
+        } catch (KeyczarException ex) {
+            Logger.getLogger(Crypt.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        return retVal;
+    }
+    
+    /**
+     * Opt in to lazy re-encryption - ciphertexts read by localDecrypt that are
+     * under a non-primary key are re-encrypted under the primary in the 
+     * background and handed to writeBack to replace the stale value
+     * 
+     * @param writeBack
+     * @param capacity maximum ciphertexts waiting, further ones are dropped
+     * until there is room
+     * @return the queue, for its counters
+     * @throws IllegalArgumentException if capacity is not positive, a queue 
+     * already enabled is kept
+     */
+    public synchronized ReEncryptionQueue enableReEncryption(ReEncryptionQueue.WriteBack writeBack, int capacity) {
+        ReEncryptionQueue queue = new ReEncryptionQueue(this, writeBack, capacity);
+        disableReEncryption();
+        reEncryptionQueue = queue;
+        return reEncryptionQueue;
+    }
+    
+    /**
+     * Stop re-encrypting, anything still queued is discarded
+     */
+    public synchronized void disableReEncryption() {
+        if(reEncryptionQueue != null) {
+            reEncryptionQueue.shutdown();
+            reEncryptionQueue = null;
+        }
+    }
+    
+    /**
+     * Decrypt, count the decrypt against the key version and queue for 
+     * re-encryption if enabled and not under the primary
+     */
+    private String decrypt(Crypter crypter, String ciphertext) throws KeyczarException {
+        
+        String retVal = crypter.decrypt(ciphertext);
+        
+        int version = KeySystem.getKeyVersion(crypter, ciphertext);
+        KeySystem.recordDecrypt(localStoreDirectory, version);
+        
+        ReEncryptionQueue queue = reEncryptionQueue;
+        if(queue != null && version != KeySystem.getPrimaryVersion(crypter)) {
+            queue.offer(ciphertext, retVal);
+        }
+        
+        return retVal;
+    }
+    
     protected int getLocalKeyVersion() {
         int retVal = -1;
         try {
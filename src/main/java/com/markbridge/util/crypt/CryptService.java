@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2016, Mark Bridge <j2eewebtier@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.markbridge.util.crypt;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.keyczar.KeySystem;
+
+/**
+ * Local HTTP sidecar so non-JVM services can use the same keys as the JVM ones,
+ * all requests share one Crypt and so the keys KeySystem holds
+ * 
+ * POST the value as the UTF-8 body to
+ *   /localEncrypt /localDecrypt /remoteEncrypt
+ * or a JSON array of strings to
+ *   /localEncrypt/batch /localDecrypt/batch /remoteEncrypt/batch
+ * 
+ * The remote paths are only served when destinations are configured, name the
+ * destination with ?destination=name - repeat it to encrypt once for several
+ * destinations, the response is then an envelope for Crypt.openEnvelope rather
+ * than a ciphertext (see Crypt.sealForDestinations)
+ * 
+ * Single values that fail get a 422, failed batch values are null in the
+ * returned array
+ * 
+ * Requests are read and answered on a fixed pool of connection threads, the
+ * crypto work goes to a bounded worker pool.  A request reserves a place in
+ * the worker pool or its queue before its body is read - when there is none
+ * the request gets a 503 with Retry-After without its body being read, so at
+ * most (worker threads * 2) bodies of up to 1 MiB are held at once.
+ * Connections are kept alive as every response has a content length
+ * 
+ * @author Mark Bridge <j2eewebtier@gmail.com>
+ */
+public class CryptService {
+    
+    private static final int MAX_BODY_BYTES = 1024 * 1024;
+    
+    private final Crypt crypt = new Crypt();
+    private final HttpServer server;
+    private final ExecutorService connections;
+    private final ThreadPoolExecutor executor;
+    
+    /**
+     * places in the worker pool and its queue, taken before a body is read
+     */
+    private final Semaphore places;
+    
+    /**
+     * destination name -> public key store directory
+     */
+    private final Map<String, String> destinations;
+    
+    /**
+     * Local paths only
+     * @param address
+     * @param threads
+     * @throws IOException 
+     */
+    public CryptService(InetSocketAddress address, int threads) throws IOException {
+        this(address, threads, Collections.<String, String>emptyMap());
+    }
+    
+    /**
+     * @param address bind to a loopback address unless the host is protected
+     * some other way, there is no authentication
+     * @param threads worker pool size, there are 4 times as many connection
+     * threads
+     * @param destinations destination name -> public (plaintext) key store 
+     * directory, the names callers may ask remoteEncrypt for
+     * @throws IOException 
+     */
+    public CryptService(InetSocketAddress address, int threads, Map<String, String> destinations) 
+            throws IOException {
+        
+        this.destinations = new HashMap<>(destinations);
+        
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads), new ThreadPoolExecutor.AbortPolicy());
+        places = new Semaphore(threads * 2);
+        
+        // more connection threads than places, so the ones over turn a request
+        // away quickly instead of leaving it waiting for a thread
+        connections = Executors.newFixedThreadPool(threads * 4);
+        
+        server = HttpServer.create(address, 0);
+        server.setExecutor(connections);
+        
+        server.createContext("/localEncrypt", new Handler(Operation.LOCAL_ENCRYPT, false));
+        server.createContext("/localDecrypt", new Handler(Operation.LOCAL_DECRYPT, false));
+        server.createContext("/localEncrypt/batch", new Handler(Operation.LOCAL_ENCRYPT, true));
+        server.createContext("/localDecrypt/batch", new Handler(Operation.LOCAL_DECRYPT, true));
+        if(! this.destinations.isEmpty()) {
+            server.createContext("/remoteEncrypt", new Handler(Operation.REMOTE_ENCRYPT, false));
+            server.createContext("/remoteEncrypt/batch", new Handler(Operation.REMOTE_ENCRYPT, true));
+        }
+    }
+    
+    public void start() {
+        server.start();
+    }
+    
+    /**
+     * @param delaySeconds time to let requests in progress finish
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+        connections.shutdown();
+    }
+    
+    /**
+     * @return the bound port, eg. when created with port 0
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+    
+    private enum Operation { LOCAL_ENCRYPT, LOCAL_DECRYPT, REMOTE_ENCRYPT }
+    
+    private class Handler implements HttpHandler {
+        
+        private final Operation operation;
+        private final boolean batch;
+        
+        Handler(Operation operation, boolean batch) {
+            this.operation = operation;
+            this.batch = batch;
+        }
+        
+        public void handle(HttpExchange exchange) throws IOException {
+            
+            try {
+                if(! "POST".equals(exchange.getRequestMethod())) {
+                    respond(exchange, 405, "POST only");
+                    return;
+                }
+                
+                final List<String> stores;
+                try {
+                    stores = operation == Operation.REMOTE_ENCRYPT 
+                            ? destinationStores(exchange) : null;
+                } catch(IllegalArgumentException ex) {
+                    respond(exchange, 400, ex.getMessage());
+                    return;
+                }
+                
+                if(! places.tryAcquire()) {
+                    busy(exchange);
+                    return;
+                }
+                
+                String retVal;
+                try {
+                    final String body = readBody(exchange);
+                    if(body == null) {
+                        respond(exchange, 413, "Body over " + MAX_BODY_BYTES + " bytes");
+                        return;
+                    }
+                    
+                    final List<String> values;
+                    if(batch) {
+                        try {
+                            values = Json.parseStringArray(body);
+                        } catch(IllegalArgumentException ex) {
+                            respond(exchange, 400, ex.getMessage());
+                            return;
+                        }
+                    } else {
+                        values = null;
+                    }
+                    
+                    retVal = executor.submit(new Callable<String>() {
+                        public String call() {
+                            return batch
+                                    ? Json.toStringArray(process(values, stores))
+                                    : process(body, stores);
+                        }
+                    }).get();
+                } catch(RejectedExecutionException ex) {
+                    busy(exchange);
+                    return;
+                } catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    respond(exchange, 503, "Stopping");
+                    return;
+                } catch(ExecutionException ex) {
+                    throw new IllegalStateException(ex.getCause());
+                } finally {
+                    places.release();
+                }
+                
+                if(retVal == null) {
+                    respond(exchange, 422, "Fail");
+                } else {
+                    respond(exchange, 200, retVal);
+                }
+            } catch(RuntimeException ex) {
+                Logger.getLogger(CryptService.class.getName()).log(Level.SEVERE, null, ex);
+                respond(exchange, 500, "Error");
+            } finally {
+                exchange.close();
+            }
+        }
+        
+        private String process(String value, List<String> stores) {
+            switch(operation) {
+                case LOCAL_ENCRYPT: return crypt.localEncrypt(value);
+                case LOCAL_DECRYPT: return crypt.localDecrypt(value);
+                default: return stores.size() == 1 
+                        ? crypt.remoteEncrypt(value, stores.get(0)) 
+                        : crypt.sealForDestinations(value, stores);
+            }
+        }
+        
+        private List<String> process(List<String> values, List<String> stores) {
+            switch(operation) {
+                case LOCAL_ENCRYPT: return crypt.localEncrypt(values);
+                case LOCAL_DECRYPT: return crypt.localDecrypt(values);
+                default: 
+                    if(stores.size() == 1) {
+                        return crypt.remoteEncrypt(values, stores.get(0));
+                    }
+                    List<String> retVal = new ArrayList<>(values.size());
+                    for(String value : values) {
+                        retVal.add(value == null ? null : crypt.sealForDestinations(value, stores));
+                    }
+                    return retVal;
+            }
+        }
+    }
+    
+    /**
+     * @param exchange
+     * @return the key store directories of the destinations named in the query
+     * @throws IllegalArgumentException if none or an unknown one is named
+     * @throws IOException 
+     */
+    private List<String> destinationStores(HttpExchange exchange) throws IOException {
+        
+        List<String> retVal = new ArrayList<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if(query != null) {
+            for(String parameter : query.split("&")) {
+                if(parameter.startsWith("destination=")) {
+                    String name = URLDecoder.decode(parameter.substring("destination=".length()), "UTF-8");
+                    String store = destinations.get(name);
+                    if(store == null) {
+                        throw new IllegalArgumentException("Unknown destination: " + name);
+                    }
+                    retVal.add(store);
+                }
+            }
+        }
+        if(retVal.isEmpty()) {
+            throw new IllegalArgumentException("No destination, add ?destination=name");
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * @param exchange
+     * @return the body, null if over the maximum size
+     * @throws IOException 
+     */
+    private static String readBody(HttpExchange exchange) throws IOException {
+        
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        
+        try (InputStream in = exchange.getRequestBody()) {
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                if(body.size() + read > MAX_BODY_BYTES) {
+                    return null;
+                }
+                body.write(buffer, 0, read);
+            }
+        }
+        
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * 503, the body is left unread
+     */
+    private static void busy(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        respond(exchange, 503, "Busy");
+    }
+    
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+    
+    /**
+     * Run on the loopback interface
+     * @param args port (default 8377), worker threads (default number of 
+     * processors) then any destinations as name=publicKeyStoreDirectory
+     * @throws IOException 
+     */
+    public static void main(String[] args) throws IOException {
+        
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8377;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        
+        Map<String, String> destinations = new HashMap<>();
+        for(int i = 2; i < args.length; i++) {
+            int split = args[i].indexOf('=');
+            if(split < 1) {
+                throw new IllegalArgumentException("Destination not name=directory: " + args[i]);
+            }
+            destinations.put(args[i].substring(0, split), args[i].substring(split + 1));
+        }
+        
+        final CryptService service = new CryptService(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port), threads, destinations);
+        service.start();
+        
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                service.stop(1);
+                KeySystem.shutdown();
+            }
+        });
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2016, Mark Bridge <j2eewebtier@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.markbridge.util.crypt;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.keyczar.Crypter;
+import org.keyczar.Encrypter;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.util.Base64Coder;
+
+/**
+ * Multi-recipient envelope - the payload is encrypted once with a random AES
+ * key and only that key is encrypted for each recipient
+ * 
+ * Format is web safe base64 parts joined by '.', one wrapped key per recipient
+ * then the payload (IV + AES/GCM ciphertext)
+ * 
+ * @author Mark Bridge <j2eewebtier@gmail.com>
+ */
+class Envelope {
+    
+    private static final String SEPARATOR = ".";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int KEY_BYTES = 16;
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+    
+    private static final SecureRandom RANDOM = new SecureRandom();
+    
+    private Envelope() {
+    }
+    
+    /**
+     * @param plaintext
+     * @param recipients an encrypter for each recipient's public key
+     * @return the envelope
+     * @throws KeyczarException
+     * @throws GeneralSecurityException 
+     * @throws IllegalArgumentException if there are no recipients
+     */
+    static String seal(String plaintext, List<Encrypter> recipients) 
+            throws KeyczarException, GeneralSecurityException {
+        
+        if(recipients.isEmpty()) {
+            throw new IllegalArgumentException("No recipients");
+        }
+        
+        byte[] key = new byte[KEY_BYTES];
+        byte[] iv = new byte[IV_BYTES];
+        RANDOM.nextBytes(key);
+        RANDOM.nextBytes(iv);
+        
+        try {
+            StringBuilder sb = new StringBuilder();
+            for(Encrypter recipient : recipients) {
+                sb.append(Base64Coder.encodeWebSafe(recipient.encrypt(key))).append(SEPARATOR);
+            }
+            
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_BITS, iv));
+            byte[] ciphertext = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8));
+            
+            byte[] payload = ByteBuffer.allocate(iv.length + ciphertext.length).put(iv).put(ciphertext).array();
+            sb.append(Base64Coder.encodeWebSafe(payload));
+            
+            return sb.toString();
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+    
+    /**
+     * @param envelope
+     * @param crypter the recipient's private key crypter
+     * @return the plaintext
+     * @throws KeyczarException if none of the wrapped keys are for the crypter
+     * @throws GeneralSecurityException if the payload has been altered
+     */
+    static String open(String envelope, Crypter crypter) throws KeyczarException, GeneralSecurityException {
+        
+        String[] parts = envelope.split("\\.");
+        if(parts.length < 2) {
+            throw new KeyczarException("Not an envelope");
+        }
+        
+        byte[] key = null;
+        for(int i = 0; i < parts.length - 1 && key == null; i++) {
+            try {
+                key = crypter.decrypt(Base64Coder.decodeWebSafe(parts[i]));
+            } catch(KeyczarException ex) {
+                //wrapped for another recipient
+            }
+        }
+        if(key == null) {
+            throw new KeyczarException("No key for this recipient");
+        }
+        
+        try {
+            byte[] payload = Base64Coder.decodeWebSafe(parts[parts.length - 1]);
+            if(payload.length < IV_BYTES) {
+                throw new KeyczarException("Short payload");
+            }
+            
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), 
+                    new GCMParameterSpec(TAG_BITS, payload, 0, IV_BYTES));
+            byte[] plaintext = cipher.doFinal(payload, IV_BYTES, payload.length - IV_BYTES);
+            
+            return new String(plaintext, StandardCharsets.UTF_8);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+}
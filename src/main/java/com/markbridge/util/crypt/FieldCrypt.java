@@ -0,0 +1,488 @@
+/*
+ * Copyright (c) 2016, Mark Bridge <j2eewebtier@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.markbridge.util.crypt;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.keyczar.Crypter;
+import org.keyczar.KeySystem;
+import org.keyczar.exceptions.KeyczarException;
+
+/**
+ * Encrypt or decrypt selected fields of a CSV (with a header row) or JSON lines
+ * file with the local keys
+ * 
+ * Records are read as a stream in batches, batches are encrypted in parallel
+ * and written in the original order - at most threads * 2 batches are held
+ * so memory is bounded whatever the file size
+ * 
+ * Only the selected values are rewritten, everything else - other fields with
+ * their original quoting, line endings, JSON formatting - is copied as read. 
+ * Empty CSV fields and JSON values that are not strings are left as they are
+ * 
+ * The output is written to a temporary file next to the target and moved onto
+ * the target only when the whole file has been processed, so a failure part 
+ * way through leaves any existing target as it was
+ * 
+ * @author Mark Bridge <j2eewebtier@gmail.com>
+ */
+public class FieldCrypt {
+    
+    public enum Format { CSV, JSON_LINES }
+    
+    private static final int BUFFER_SIZE = 1 << 16;
+    
+    private final Format format;
+    private final Set<String> fields;
+    
+    private String storeDirectory = KeySystem.asymmetricEncryptedStoreDirectory;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int batchSize = 512;
+    
+    /**
+     * @param format
+     * @param fields CSV header names or JSON top level keys of the fields to 
+     * encrypt/decrypt
+     */
+    public FieldCrypt(Format format, Collection<String> fields) {
+        this.format = format;
+        this.fields = new HashSet<>(fields);
+    }
+    
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+    
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+    
+    /**
+     * @param source
+     * @param target created or replaced, not the source
+     * @return number of records encrypted, not counting a CSV header
+     * @throws IOException
+     * @throws KeyczarException 
+     * @throws IllegalArgumentException if the target is the source
+     */
+    public long encrypt(Path source, Path target) throws IOException, KeyczarException {
+        return process(source, target, true);
+    }
+    
+    /**
+     * @param source
+     * @param target created or replaced, not the source
+     * @return number of records decrypted, not counting a CSV header
+     * @throws IOException
+     * @throws KeyczarException 
+     * @throws IllegalArgumentException if the target is the source
+     */
+    public long decrypt(Path source, Path target) throws IOException, KeyczarException {
+        return process(source, target, false);
+    }
+    
+    private long process(Path source, Path target, boolean encrypt) throws IOException, KeyczarException {
+        
+        if(Files.exists(target) && Files.isSameFile(source, target)) {
+            throw new IllegalArgumentException("Target is the source: " + target);
+        }
+        
+        Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), 
+                target.getFileName().toString() + ".", ".tmp");
+        try {
+            long retVal = processInto(source, temp, encrypt);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            return retVal;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+    
+    /**
+     * @param source
+     * @param temp the temporary target, created empty
+     */
+    private long processInto(Path source, Path temp, final boolean encrypt) 
+            throws IOException, KeyczarException {
+        
+        //one crypter for the whole file, keyczar crypters are thread safe
+        final Crypter crypter;
+        synchronized ("crypt") {
+            crypter = KeySystem.getInstance().getCrypter(storeDirectory, true);
+        }
+        
+        long count = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE);
+                Reader reader = Channels.newReader(in, "UTF-8");
+                Writer writer = new BufferedWriter(Channels.newWriter(out, "UTF-8"), BUFFER_SIZE)) {
+            
+            RecordReader records = new RecordReader(reader, format == Format.CSV);
+            
+            final boolean[] selected;
+            if(format == Format.CSV) {
+                String header = records.next();
+                if(header == null) {
+                    return 0;
+                }
+                selected = selectColumns(header.substring(0, contentEnd(header)));
+                writer.write(header);
+            } else {
+                selected = null;
+            }
+            
+            Deque<Future<List<String>>> inFlight = new ArrayDeque<>();
+            List<String> batch = new ArrayList<>(batchSize);
+            String record;
+            
+            while((record = records.next()) != null) {
+                batch.add(record);
+                count++;
+                if(batch.size() == batchSize) {
+                    inFlight.add(submit(executor, batch, selected, crypter, encrypt));
+                    batch = new ArrayList<>(batchSize);
+                    if(inFlight.size() >= threads * 2) {
+                        write(writer, inFlight.poll());
+                    }
+                }
+            }
+            if(! batch.isEmpty()) {
+                inFlight.add(submit(executor, batch, selected, crypter, encrypt));
+            }
+            while(! inFlight.isEmpty()) {
+                write(writer, inFlight.poll());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        
+        return count;
+    }
+    
+    private Future<List<String>> submit(ExecutorService executor, final List<String> batch, 
+            final boolean[] selected, final Crypter crypter, final boolean encrypt) {
+        
+        return executor.submit(new Callable<List<String>>() {
+            public List<String> call() throws KeyczarException {
+                List<String> retVal = new ArrayList<>(batch.size());
+                Map<Integer, Long> decrypts = new HashMap<>();
+                for(String record : batch) {
+                    retVal.add(format == Format.CSV 
+                            ? transformCsv(record, selected, crypter, encrypt, decrypts)
+                            : transformJson(record, crypter, encrypt, decrypts));
+                }
+                for(Map.Entry<Integer, Long> entry : decrypts.entrySet()) {
+                    KeySystem.recordDecrypt(storeDirectory, entry.getKey(), entry.getValue());
+                }
+                return retVal;
+            }
+        });
+    }
+    
+    private void write(Writer writer, Future<List<String>> batch) throws IOException, KeyczarException {
+        
+        List<String> records;
+        try {
+            records = batch.get();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", ex);
+        } catch(ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof KeyczarException) {
+                throw (KeyczarException) cause;
+            }
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+        
+        for(String record : records) {
+            writer.write(record);
+        }
+    }
+    
+    /**
+     * Decrypts are counted into the batch's totals, recorded once per batch
+     */
+    private String transform(String value, Crypter crypter, boolean encrypt, Map<Integer, Long> decrypts) 
+            throws KeyczarException {
+        if(encrypt) {
+            String retVal = crypter.encrypt(value);
+            KeySystem.recordEncrypt(storeDirectory, KeySystem.getPrimaryVersion(crypter), value);
+            return retVal;
+        }
+        String retVal = crypter.decrypt(value);
+        Integer version = KeySystem.getKeyVersion(crypter, value);
+        Long prior = decrypts.get(version);
+        decrypts.put(version, prior == null ? 1 : prior + 1);
+        return retVal;
+    }
+    
+    private boolean[] selectColumns(String header) {
+        
+        List<String> names = splitCsv(header);
+        boolean[] retVal = new boolean[names.size()];
+        Set<String> missing = new HashSet<>(fields);
+        for(int i = 0; i < names.size(); i++) {
+            retVal[i] = fields.contains(names.get(i));
+            missing.remove(names.get(i));
+        }
+        if(! missing.isEmpty()) {
+            throw new IllegalArgumentException("Fields not in header: " + missing);
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * Selected fields are replaced, quoted only if the new value needs it, the
+     * rest of the record is copied as is
+     */
+    private String transformCsv(String record, boolean[] selected, Crypter crypter, boolean encrypt, 
+            Map<Integer, Long> decrypts) throws KeyczarException {
+        
+        StringBuilder sb = new StringBuilder(record.length() * 2);
+        int end = contentEnd(record);
+        int copied = 0;
+        int start = 0;
+        
+        for(int column = 0; start <= end; column++) {
+            int fieldEnd = fieldEnd(record, start, end);
+            if(column < selected.length && selected[column] && fieldEnd > start) {
+                String value = unquoteCsv(record, start, fieldEnd);
+                if(! value.isEmpty()) {
+                    sb.append(record, copied, start);
+                    appendCsv(sb, transform(value, crypter, encrypt, decrypts));
+                    copied = fieldEnd;
+                }
+            }
+            start = fieldEnd + 1;
+        }
+        sb.append(record, copied, record.length());
+        
+        return sb.toString();
+    }
+    
+    private String transformJson(String record, Crypter crypter, boolean encrypt, Map<Integer, Long> decrypts) 
+            throws KeyczarException {
+        
+        StringBuilder sb = new StringBuilder(record.length() * 2);
+        int copied = 0;
+        
+        int i = Json.skipWhitespace(record, 0);
+        if(i == record.length()) {
+            return record;
+        }
+        Json.expect(record, i, '{');
+        i = Json.skipWhitespace(record, i + 1);
+        
+        while(i < record.length() && record.charAt(i) != '}') {
+            int keyEnd = Json.skipString(record, i);
+            String key = Json.unquote(record, i, keyEnd);
+            i = Json.skipWhitespace(record, keyEnd);
+            Json.expect(record, i, ':');
+            
+            int valueStart = Json.skipWhitespace(record, i + 1);
+            int valueEnd = Json.skipValue(record, valueStart);
+            if(fields.contains(key) && record.charAt(valueStart) == '"') {
+                String value = Json.unquote(record, valueStart, valueEnd);
+                sb.append(record, copied, valueStart);
+                sb.append(Json.quote(transform(value, crypter, encrypt, decrypts)));
+                copied = valueEnd;
+            }
+            
+            i = Json.skipWhitespace(record, valueEnd);
+            if(i < record.length() && record.charAt(i) == ',') {
+                i = Json.skipWhitespace(record, i + 1);
+            }
+        }
+        Json.expect(record, i, '}');
+        sb.append(record, copied, record.length());
+        
+        return sb.toString();
+    }
+    
+    /**
+     * @param record
+     * @return the index of the record's line break, the length if it has none
+     */
+    private static int contentEnd(String record) {
+        int retVal = record.length();
+        if(retVal > 0 && record.charAt(retVal - 1) == '\n') {
+            retVal--;
+            if(retVal > 0 && record.charAt(retVal - 1) == '\r') {
+                retVal--;
+            }
+        }
+        return retVal;
+    }
+    
+    /**
+     * @param record
+     * @param start index of the first character of the field
+     * @param end index of the end of the record content
+     * @return index of the comma after the field, or end
+     */
+    private static int fieldEnd(String record, int start, int end) {
+        boolean quoted = false;
+        for(int i = start; i < end; i++) {
+            char c = record.charAt(i);
+            if(c == '"') {
+                quoted = ! quoted;
+            } else if(c == ',' && ! quoted) {
+                return i;
+            }
+        }
+        return end;
+    }
+    
+    private static String unquoteCsv(String record, int start, int end) {
+        
+        if(record.charAt(start) != '"') {
+            return record.substring(start, end);
+        }
+        
+        StringBuilder sb = new StringBuilder(end - start);
+        for(int i = start + 1; i < end; i++) {
+            char c = record.charAt(i);
+            if(c == '"') {
+                if(i + 1 < end && record.charAt(i + 1) == '"') {
+                    sb.append('"');
+                    i++;
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        
+        return sb.toString();
+    }
+    
+    private static List<String> splitCsv(String record) {
+        
+        List<String> retVal = new ArrayList<>();
+        int start = 0;
+        while(start <= record.length()) {
+            int end = fieldEnd(record, start, record.length());
+            retVal.add(end > start ? unquoteCsv(record, start, end) : "");
+            start = end + 1;
+        }
+        
+        return retVal;
+    }
+    
+    private static void appendCsv(StringBuilder sb, String value) {
+        
+        boolean quote = false;
+        for(int i = 0; i < value.length() && ! quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        
+        if(quote) {
+            sb.append('"').append(value.replace("\"", "\"\"")).append('"');
+        } else {
+            sb.append(value);
+        }
+    }
+    
+    /**
+     * Reads records with their line break (\n or \r\n, none at the end of the 
+     * file) so they can be written back exactly.  A CSV record runs on over 
+     * line breaks in quoted fields, a JSON record is one line
+     */
+    private static class RecordReader {
+        
+        private final Reader reader;
+        private final boolean csv;
+        private final char[] buffer = new char[BUFFER_SIZE];
+        private int position;
+        private int limit;
+        
+        RecordReader(Reader reader, boolean csv) {
+            this.reader = reader;
+            this.csv = csv;
+        }
+        
+        /**
+         * @return the next record, null at end of file
+         * @throws IOException 
+         */
+        String next() throws IOException {
+            
+            StringBuilder sb = new StringBuilder();
+            boolean quoted = false;
+            
+            while(true) {
+                if(position == limit) {
+                    limit = reader.read(buffer);
+                    position = 0;
+                    if(limit < 0) {
+                        limit = 0;
+                        return sb.length() == 0 ? null : sb.toString();
+                    }
+                }
+                int start = position;
+                while(position < limit) {
+                    char c = buffer[position++];
+                    if(c == '"' && csv) {
+                        quoted = ! quoted;
+                    } else if(c == '\n' && ! quoted) {
+                        sb.append(buffer, start, position - start);
+                        return sb.toString();
+                    }
+                }
+                sb.append(buffer, start, position - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2016, Mark Bridge <j2eewebtier@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.markbridge.util.crypt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Just enough JSON to find and replace string values in a flat record without
+ * pulling in a JSON library
+ * 
+ * @author Mark Bridge <j2eewebtier@gmail.com>
+ */
+class Json {
+    
+    private Json() {
+    }
+    
+    /**
+     * @param value
+     * @return the value as a quoted JSON string
+     */
+    static String quote(String value) {
+        
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('"');
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch(c) {
+                case '"': sb.append("\\\"");
+                break;
+                case '\\': sb.append("\\\\");
+                break;
+                case '\n': sb.append("\\n");
+                break;
+                case '\r': sb.append("\\r");
+                break;
+                case '\t': sb.append("\\t");
+                break;
+                case '\b': sb.append("\\b");
+                break;
+                case '\f': sb.append("\\f");
+                break;
+                default:
+                    if(c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+        
+        return sb.toString();
+    }
+    
+    /**
+     * @param json
+     * @param start index of the opening quote
+     * @param end index after the closing quote
+     * @return the string value with escapes resolved
+     */
+    static String unquote(String json, int start, int end) {
+        
+        StringBuilder sb = new StringBuilder(end - start);
+        for(int i = start + 1; i < end - 1; i++) {
+            char c = json.charAt(i);
+            if(c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            c = json.charAt(++i);
+            switch(c) {
+                case 'n': sb.append('\n');
+                break;
+                case 'r': sb.append('\r');
+                break;
+                case 't': sb.append('\t');
+                break;
+                case 'b': sb.append('\b');
+                break;
+                case 'f': sb.append('\f');
+                break;
+                case 'u': 
+                    sb.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                    i += 4;
+                break;
+                default: sb.append(c);
+            }
+        }
+        
+        return sb.toString();
+    }
+    
+    /**
+     * @param json an array of strings and nulls eg. ["a", null, "b"]
+     * @return the values
+     */
+    static List<String> parseStringArray(String json) {
+        
+        List<String> retVal = new ArrayList<>();
+        
+        int i = skipWhitespace(json, 0);
+        expect(json, i, '[');
+        i = skipWhitespace(json, i + 1);
+        
+        while(i < json.length() && json.charAt(i) != ']') {
+            if(json.startsWith("null", i)) {
+                retVal.add(null);
+                i += 4;
+            } else {
+                int end = skipString(json, i);
+                retVal.add(unquote(json, i, end));
+                i = end;
+            }
+            
+            i = skipWhitespace(json, i);
+            if(i < json.length() && json.charAt(i) == ',') {
+                i = skipWhitespace(json, i + 1);
+            } else {
+                break;
+            }
+        }
+        expect(json, i, ']');
+        
+        return retVal;
+    }
+    
+    /**
+     * @param values
+     * @return a JSON array of the values as strings, nulls as null
+     */
+    static String toStringArray(List<String> values) {
+        
+        StringBuilder sb = new StringBuilder();
+        sb.append('[');
+        for(int i = 0; i < values.size(); i++) {
+            if(i > 0) {
+                sb.append(',');
+            }
+            String value = values.get(i);
+            sb.append(value == null ? "null" : quote(value));
+        }
+        sb.append(']');
+        
+        return sb.toString();
+    }
+    
+    static int skipWhitespace(String json, int i) {
+        while(i < json.length() && Character.isWhitespace(json.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+    
+    /**
+     * @param json
+     * @param i index of the opening quote
+     * @return index after the closing quote
+     */
+    static int skipString(String json, int i) {
+        
+        expect(json, i, '"');
+        for(i++; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if(c == '\\') {
+                i++;
+            } else if(c == '"') {
+                return i + 1;
+            }
+        }
+        throw new IllegalArgumentException("Unterminated string");
+    }
+    
+    /**
+     * @param json
+     * @param i index of the start of any value
+     * @return index after the end of the value
+     */
+    static int skipValue(String json, int i) {
+        
+        if(i >= json.length()) {
+            throw new IllegalArgumentException("Missing value");
+        }
+        
+        char c = json.charAt(i);
+        if(c == '"') {
+            return skipString(json, i);
+        }
+        
+        if(c == '{' || c == '[') {
+            int depth = 0;
+            while(i < json.length()) {
+                c = json.charAt(i);
+                if(c == '"') {
+                    i = skipString(json, i);
+                    continue;
+                }
+                if(c == '{' || c == '[') {
+                    depth++;
+                } else if(c == '}' || c == ']') {
+                    depth--;
+                    if(depth == 0) {
+                        return i + 1;
+                    }
+                }
+                i++;
+            }
+            throw new IllegalArgumentException("Unterminated object or array");
+        }
+        
+        //number, true, false or null
+        while(i < json.length() && ",}] \t\r\n".indexOf(json.charAt(i)) < 0) {
+            i++;
+        }
+        return i;
+    }
+    
+    static void expect(String json, int i, char c) {
+        if(i >= json.length() || json.charAt(i) != c) {
+            throw new IllegalArgumentException("Expected '" + c + "' at " + i);
+        }
+    }
+}
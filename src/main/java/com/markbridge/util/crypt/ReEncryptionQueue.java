@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2016, Mark Bridge <j2eewebtier@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.markbridge.util.crypt;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Re-encrypts ciphertexts found on decrypt to be under a non-primary key 
+ * version so that data migrates to the current primary as it is read, rather
+ * than with an offline sweep after KeySystem.rotate()
+ * 
+ * Bounded - if the queue is full the ciphertext is dropped and will be offered
+ * again the next time it is read
+ * 
+ * @author Mark Bridge <j2eewebtier@gmail.com>
+ */
+public class ReEncryptionQueue {
+    
+    /**
+     * Caller provided - store the fresh ciphertext in place of the stale one,
+     * called on the re-encryption thread
+     */
+    public interface WriteBack {
+        void write(String staleCiphertext, String freshCiphertext);
+    }
+    
+    private final Crypt crypt;
+    private final WriteBack writeBack;
+    
+    /**
+     * pairs of stale ciphertext and plaintext
+     */
+    private final BlockingQueue<String[]> queue;
+    
+    /**
+     * stale ciphertexts queued or being re-encrypted, so hot values read many
+     * times are only queued once
+     */
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    
+    private final AtomicLong reEncrypted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    
+    private final Thread worker;
+    
+    /**
+     * @param crypt
+     * @param writeBack
+     * @param capacity must be at least 1
+     * @throws IllegalArgumentException if capacity is not positive
+     */
+    ReEncryptionQueue(Crypt crypt, WriteBack writeBack, int capacity) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("Re-encryption queue capacity must be positive: " + capacity);
+        }
+        this.crypt = crypt;
+        this.writeBack = writeBack;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        
+        worker = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "crypt-re-encryption");
+        worker.setDaemon(true);
+        worker.start();
+    }
+    
+    /**
+     * @param staleCiphertext
+     * @param plaintext
+     * @return false if already queued or the queue is full
+     */
+    boolean offer(String staleCiphertext, String plaintext) {
+        if(! pending.add(staleCiphertext)) {
+            duplicates.incrementAndGet();
+            return false;
+        }
+        if(! queue.offer(new String[] {staleCiphertext, plaintext})) {
+            pending.remove(staleCiphertext);
+            dropped.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+    
+    void shutdown() {
+        worker.interrupt();
+        queue.clear();
+        pending.clear();
+    }
+    
+    /**
+     * @return number of ciphertexts re-encrypted and written back
+     */
+    public long getReEncrypted() {
+        return reEncrypted.get();
+    }
+    
+    /**
+     * @return number of ciphertexts not queued as the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+    
+    /**
+     * @return number of ciphertexts not queued as they were already queued or
+     * being re-encrypted
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+    
+    /**
+     * @return number of ciphertexts waiting to be re-encrypted
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+    
+    private void drain() {
+        while(! Thread.currentThread().isInterrupted()) {
+            String[] entry;
+            try {
+                entry = queue.take();
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            
+            try {
+                String freshCiphertext = crypt.localEncrypt(entry[1]);
+                if(freshCiphertext != null) {
+                    writeBack.write(entry[0], freshCiphertext);
+                    reEncrypted.incrementAndGet();
+                }
+            } catch(RuntimeException ex) {
+                Logger.getLogger(ReEncryptionQueue.class.getName()).log(Level.SEVERE, "Write back fail", ex);
+            } finally {
+                pending.remove(entry[0]);
+            }
+        }
+    }
+}
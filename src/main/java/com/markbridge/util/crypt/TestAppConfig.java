@@ -46,4 +46,8 @@ public class TestAppConfig extends AppConfig {
     public String asymmetricPublicPlaintextStoreDirectory() {
         return ".\\src\\test\\resources\\keys-asymm-public\\";
     }
+    
+    public String hmacEncryptedStoreDirectory() {
+        return ".\\src\\test\\resources\\keys-hmac\\";
+    }
 }
@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2016, Mark Bridge <j2eewebtier@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.keyczar;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import org.keyczar.enums.KeyStatus;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.exceptions.NoPrimaryKeyException;
+import org.keyczar.interfaces.KeyczarReader;
+import org.keyczar.util.Base64Coder;
+
+/**
+ * Holds the decrypted keys of an encrypted key store in direct (off heap) 
+ * buffers so each crypter built from the store does not decrypt every key 
+ * again with the private directory crypter
+ * 
+ * The buffers are not the only copy.  A keyczar reads a key as a String and
+ * parses it into its own key objects, which hold the key material on the heap
+ * where it can not be zeroed - for as long as the keyczar is reachable.  The
+ * keyczars KeySystem hands out for the store are built here once and kept, so
+ * the keys they were built with (the primary, and every version a 
+ * LazyCrypter has read) stay on the heap while the store is in use
+ * 
+ * wipe zeroes the buffers, drops the built keyczars and the keys each 
+ * LazyCrypter built here has read, and marks the holder wiped so nothing 
+ * decrypts into it again - KeySystem does this on rotate, reconfigure and 
+ * shutdown, and wipe(version) on revoke.  The primary a keyczar was built with
+ * stays in the keyczar until whoever holds the keyczar lets it go, a wiped 
+ * LazyCrypter refuses to encrypt with it
+ * 
+ * The keyczars are also dropped (keys kept) when KeySystem changes the store
+ * metadata, a store changed outside KeySystem needs a wipe to be seen
+ * 
+ * Metadata is not cached - it is not secret and is changed by promote/demote
+ * 
+ * Each version is only decrypted when first read, and the key hash of each
+ * version read is recorded in the store's hash index (KeySystem.getHashes) so
+ * a later crypter, also after a restart, can go straight to the version a 
+ * ciphertext needs (see LazyCrypter)
+ * 
+ * @author Mark Bridge <j2eewebtier@gmail.com>
+ */
+class KeyHolder implements KeyczarReader {
+    
+    private final String storeDirectory;
+    private final String privateDirectory;
+    
+    private final Map<Integer, ByteBuffer> keys = new HashMap<>();
+    
+    /**
+     * web safe base64 key hash -> version, the store's hash index - key hashes
+     * are not secret
+     */
+    private final Map<String, Integer> versions = new HashMap<>();
+    
+    /**
+     * kind (and version) -> keyczar built from the held keys
+     */
+    private final Map<String, Keyczar> keyczars = new HashMap<>();
+    
+    /**
+     * every LazyCrypter built here that is still reachable, including ones
+     * dropped from keyczars but still in use
+     */
+    private final Set<LazyCrypter> crypters = 
+            Collections.newSetFromMap(new WeakHashMap<LazyCrypter, Boolean>());
+    
+    private boolean wiped;
+    
+    /**
+     * @param storeDirectory the encrypted key store
+     * @param privateDirectory the store of keys the store keys are encrypted with
+     */
+    KeyHolder(String storeDirectory, String privateDirectory) {
+        this.storeDirectory = storeDirectory;
+        this.privateDirectory = privateDirectory;
+        versions.putAll(KeySystem.getHashes(storeDirectory));
+    }
+    
+    /**
+     * Marked not encrypted as the keys read from here are already decrypted,
+     * KeySystem.save marks it encrypted again when the store is written
+     * @return
+     * @throws KeyczarException 
+     */
+    public String getMetadata() throws KeyczarException {
+        KeyMetadata metadata = KeyMetadata.read(new KeyczarFileReader(storeDirectory).getMetadata());
+        metadata.setEncrypted(false);
+        return metadata.toString();
+    }
+    
+    /**
+     * Decrypts the key the first time it is asked for, the private directory
+     * crypter is not kept
+     * @param version
+     * @return a heap copy of the decrypted key
+     * @throws KeyczarException also if the holder is wiped
+     */
+    public synchronized String getKey(int version) throws KeyczarException {
+        
+        if(wiped) {
+            throw new KeyczarException("Keys wiped: " + storeDirectory);
+        }
+        
+        ByteBuffer buffer = keys.get(version);
+        if(buffer == null) {
+            KeyczarReader reader = new KeyczarEncryptedReader(
+                    new KeyczarFileReader(storeDirectory), new Crypter(privateDirectory));
+            buffer = store(reader.getKey(version));
+            keys.put(version, buffer);
+        }
+        
+        return load(buffer);
+    }
+    
+    public String getKey() throws KeyczarException {
+        
+        KeyMetadata metadata = KeyMetadata.read(getMetadata());
+        for(KeyVersion version : metadata.getVersions()) {
+            if(version.getStatus() == KeyStatus.PRIMARY) {
+                return getKey(version.getVersionNumber());
+            }
+        }
+        throw new NoPrimaryKeyException();
+    }
+    
+    synchronized Crypter getCrypter() throws KeyczarException {
+        Crypter retVal = (Crypter) keyczars.get("crypter");
+        if(retVal == null) {
+            LazyCrypter crypter = new LazyCrypter(this);
+            crypters.add(crypter);
+            keyczars.put("crypter", crypter);
+            retVal = crypter;
+        }
+        return retVal;
+    }
+    
+    synchronized Encrypter getEncrypter() throws KeyczarException {
+        Encrypter retVal = (Encrypter) keyczars.get("encrypter");
+        if(retVal == null) {
+            retVal = new Encrypter(new VersionReader(this));
+            keyczars.put("encrypter", retVal);
+        }
+        return retVal;
+    }
+    
+    synchronized Signer getSigner() throws KeyczarException {
+        Signer retVal = (Signer) keyczars.get("signer");
+        if(retVal == null) {
+            retVal = new Signer(new VersionReader(this));
+            keyczars.put("signer", retVal);
+        }
+        return retVal;
+    }
+    
+    /**
+     * @param version
+     * @return a signer with the version as its primary
+     * @throws KeyczarException 
+     */
+    synchronized Signer getSigner(int version) throws KeyczarException {
+        Signer retVal = (Signer) keyczars.get("signer:" + version);
+        if(retVal == null) {
+            retVal = new Signer(new VersionReader(this, version));
+            keyczars.put("signer:" + version, retVal);
+        }
+        return retVal;
+    }
+    
+    /**
+     * Drop the keyczars built so far, the keys are kept - call when the 
+     * store metadata changes
+     */
+    synchronized void clearKeyczars() {
+        keyczars.clear();
+    }
+    
+    /**
+     * @param hash
+     * @return the version with the key hash if indexed, otherwise null
+     */
+    synchronized Integer getVersion(byte[] hash) {
+        return versions.get(Base64Coder.encodeWebSafe(hash));
+    }
+    
+    /**
+     * @param version
+     * @return if the version's key hash is indexed
+     */
+    synchronized boolean isIndexed(int version) {
+        return versions.containsValue(version);
+    }
+    
+    /**
+     * Index a key hash, recorded in the store if new
+     * @param hash
+     * @param version 
+     */
+    synchronized void putVersion(byte[] hash, int version) {
+        String encoded = Base64Coder.encodeWebSafe(hash);
+        Integer prior = versions.put(encoded, version);
+        if(prior == null || prior != version) {
+            KeySystem.recordHash(storeDirectory, encoded, version);
+        }
+    }
+    
+    /**
+     * @return the versions decrypted and held
+     */
+    synchronized Set<Integer> getDecryptedVersions() {
+        return new TreeSet<>(keys.keySet());
+    }
+    
+    /**
+     * @param version
+     * @return the buffer the decrypted key is held in, null if not held
+     */
+    synchronized ByteBuffer getBuffer(int version) {
+        return keys.get(version);
+    }
+    
+    /**
+     * Zero and drop one key, eg. when it is revoked - the holder stays usable
+     * for the other versions
+     * @param version 
+     */
+    synchronized void wipe(int version) {
+        ByteBuffer buffer = keys.remove(version);
+        if(buffer != null) {
+            zero(buffer);
+        }
+        versions.values().removeAll(Collections.singleton(version));
+        keyczars.clear();
+        for(LazyCrypter crypter : crypters) {
+            crypter.drop(version);
+        }
+    }
+    
+    /**
+     * Zero and drop all keys, after this getKey throws so a crypter still in
+     * use can not decrypt keys into the holder again - KeySystem replaces a
+     * wiped holder with a new one
+     */
+    synchronized void wipe() {
+        wiped = true;
+        for(ByteBuffer buffer : keys.values()) {
+            zero(buffer);
+        }
+        keys.clear();
+        versions.clear();
+        keyczars.clear();
+        for(LazyCrypter crypter : crypters) {
+            crypter.drop();
+        }
+        crypters.clear();
+    }
+    
+    synchronized boolean isWiped() {
+        return wiped;
+    }
+    
+    private static ByteBuffer store(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes);
+        buffer.flip();
+        Arrays.fill(bytes, (byte) 0);
+        return buffer;
+    }
+    
+    private static String load(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        String retVal = new String(bytes, StandardCharsets.UTF_8);
+        Arrays.fill(bytes, (byte) 0);
+        return retVal;
+    }
+    
+    private static void zero(ByteBuffer buffer) {
+        for(int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+}
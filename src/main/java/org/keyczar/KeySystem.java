@@ -26,11 +26,37 @@
 package org.keyczar;
 
 import com.markbridge.util.crypt.App;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.keyczar.enums.KeyStatus;
+import org.keyczar.exceptions.KeyNotFoundException;
 import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.exceptions.NoPrimaryKeyException;
+import org.keyczar.exceptions.ShortCiphertextException;
 import org.keyczar.interfaces.KeyczarReader;
+import org.keyczar.util.Base64Coder;
 
 /**
  * 
@@ -58,18 +84,72 @@ public class KeySystem {
     public static String symmetricEncryptedStoreDirectory = App.CONFIG.symmetricEncryptedStoreDirectory();
     public static String asymmetricEncryptedStoreDirectory = App.CONFIG.asymmetricEncryptedStoreDirectory();
     public static String asymmetricPublicPlaintextStoreDirectory = App.CONFIG.asymmetricPublicPlaintextStoreDirectory();
+    public static String hmacEncryptedStoreDirectory = App.CONFIG.hmacEncryptedStoreDirectory();
     
     private static KeySystem singleton;
     
+    /**
+     * key version -> time added, kept in each store directory
+     */
+    private static final String CREATED_FILE = "created";
+    
+    /**
+     * web safe base64 key hash -> key version, kept in each store directory
+     */
+    private static final String HASHES_FILE = "hashes";
+    
+    /**
+     * guards the hashes files - takes no other lock, so a key holder can 
+     * record a hash under its own lock
+     */
+    private static final Object hashesLock = new Object();
+    
+    /**
+     * store directory -> key version -> number of decrypts under that version
+     */
+    private static final ConcurrentMap<String, ConcurrentMap<Integer, AtomicLong>> decryptCounts = 
+            new ConcurrentHashMap<>();
+    
+    /**
+     * store directory -> key version -> number of encrypts (or signs) under 
+     * that version
+     */
+    private static final ConcurrentMap<String, ConcurrentMap<Integer, AtomicLong>> encryptCounts = 
+            new ConcurrentHashMap<>();
+    
+    /**
+     * store directory -> key version -> plaintext bytes encrypted (or signed)
+     * under that version
+     */
+    private static final ConcurrentMap<String, ConcurrentMap<Integer, AtomicLong>> encryptBytes = 
+            new ConcurrentHashMap<>();
+    
+    private static RotationScheduler rotationScheduler;
+    
+    /**
+     * store directory -> decrypted keys of the encrypted store, held off heap
+     */
+    private static final ConcurrentMap<String, KeyHolder> keyHolders = new ConcurrentHashMap<>();
+    
     /**
      * Set up a symmetric key store in a private directory to encrypt generated
      * asymmetric keys if one does not exist
      */
     private KeySystem() throws KeyczarException {
+        createStores();
+    }
+    
+    /**
+     * Create the configured directories and set up any store with no keys, 
+     * eg. after reconfigure to new directories
+     * @throws KeyczarException 
+     */
+    void createStores() throws KeyczarException {
         new File(privateDirectory).mkdirs();
         new File(symmetricEncryptedStoreDirectory).mkdirs();
         new File(asymmetricEncryptedStoreDirectory).mkdirs();
         new File(asymmetricPublicPlaintextStoreDirectory).mkdirs();
+        new File(hmacEncryptedStoreDirectory).mkdirs();
         
         if(new File(privateDirectory).listFiles().length == 0) {
             this.createCryptStore("cryptkey", privateDirectory, false);
@@ -90,6 +170,12 @@ public class KeySystem {
             
             this.updatePubKeyStore();
         }
+        
+        if(new File(hmacEncryptedStoreDirectory).listFiles().length == 0) {
+            this.createSignStore("keys-hmac", hmacEncryptedStoreDirectory);
+            this.addEncryptedKey(hmacEncryptedStoreDirectory, true);
+            this.addEncryptedKey(hmacEncryptedStoreDirectory, false);
+        }
     }
     
     public synchronized static void reconfigure(String privateDirectory,
@@ -97,10 +183,60 @@ public class KeySystem {
             String asymmetricEncryptedStoreDirectory,
             String asymmetricPublicPlaintextStoreDirectory) {
         
+        reconfigure(privateDirectory, symmetricEncryptedStoreDirectory, 
+                asymmetricEncryptedStoreDirectory, asymmetricPublicPlaintextStoreDirectory,
+                KeySystem.hmacEncryptedStoreDirectory);
+    }
+    
+    public synchronized static void reconfigure(String privateDirectory,
+            String symmetricEncryptedStoreDirectory,
+            String asymmetricEncryptedStoreDirectory,
+            String asymmetricPublicPlaintextStoreDirectory,
+            String hmacEncryptedStoreDirectory) {
+        
+        KeySystem.hmacEncryptedStoreDirectory = hmacEncryptedStoreDirectory;
         KeySystem.privateDirectory = privateDirectory;
         KeySystem.symmetricEncryptedStoreDirectory = symmetricEncryptedStoreDirectory;
         KeySystem.asymmetricEncryptedStoreDirectory = asymmetricEncryptedStoreDirectory;
         KeySystem.asymmetricPublicPlaintextStoreDirectory = asymmetricPublicPlaintextStoreDirectory;
+        
+        wipeKeys();
+    }
+    
+    /**
+     * Stop the rotation scheduler if started and zero all decrypted keys held
+     * - call when the application stops
+     */
+    public synchronized static void shutdown() {
+        if(rotationScheduler != null) {
+            rotationScheduler.stop();
+            rotationScheduler = null;
+        }
+        wipeKeys();
+    }
+    
+    /**
+     * Start rotating stores in the background by policy, add the policies to 
+     * the returned scheduler.  Stopped by shutdown
+     * 
+     * @param checkIntervalMillis how often the policies are checked
+     * @param jitter fraction of the interval each check is moved by at random,
+     * eg. 0.2 for +/- 20%, so a fleet of nodes do not check and rotate together
+     * @return the scheduler
+     */
+    public synchronized static RotationScheduler startRotationScheduler(long checkIntervalMillis, double jitter) {
+        if(rotationScheduler == null) {
+            rotationScheduler = new RotationScheduler(checkIntervalMillis, jitter);
+            rotationScheduler.start();
+        }
+        return rotationScheduler;
+    }
+    
+    /**
+     * @return the running scheduler, null if not started
+     */
+    public synchronized static RotationScheduler getRotationScheduler() {
+        return rotationScheduler;
     }
     
     public synchronized static KeySystem getInstance() {
@@ -131,29 +267,59 @@ public class KeySystem {
      */
     public Crypter getCrypter(String storeDirectory, boolean encrypted) throws KeyczarException {
         
-        
-        KeyczarReader keyczarReader = new KeyczarFileReader(storeDirectory);
-        if(encrypted) {
-            Crypter keyEncrypter = new Crypter(privateDirectory);
-            keyczarReader = new KeyczarEncryptedReader(keyczarReader, keyEncrypter);
-        }
-        Crypter crypter = new Crypter(keyczarReader);
+        Crypter crypter = encrypted 
+                ? getHolder(storeDirectory).getCrypter() 
+                : new Crypter(new KeyczarFileReader(storeDirectory));
         
         return crypter;
     }
     
     public Encrypter getEncrypter(String storeDirectory, boolean encrypted) throws KeyczarException {
         
-        KeyczarReader keyczarReader = new KeyczarFileReader(storeDirectory);
-        if(encrypted) {
-            Crypter keyEncrypter = new Crypter(privateDirectory);
-            keyczarReader = new KeyczarEncryptedReader(keyczarReader, keyEncrypter);
-        }
-        Encrypter encrypter = new Encrypter(keyczarReader);
+        Encrypter encrypter = encrypted 
+                ? getHolder(storeDirectory).getEncrypter() 
+                : new Encrypter(new KeyczarFileReader(storeDirectory));
         
         return encrypter;
     }
     
+    /**
+     * Call this method to get a signer for a sign (HMAC) key store, eg. for
+     * blind index tokens
+     * 
+     * @param storeDirectory
+     * @param encrypted if the key store is an encrypted one - typically yes
+     * @return a signer using the primary key
+     * @throws KeyczarException 
+     */
+    public Signer getSigner(String storeDirectory, boolean encrypted) throws KeyczarException {
+        
+        Signer signer = encrypted 
+                ? getHolder(storeDirectory).getSigner() 
+                : new Signer(new KeyczarFileReader(storeDirectory));
+        
+        return signer;
+    }
+    
+    /**
+     * As getSigner but signs with the given version rather than the primary,
+     * only that version's key is read
+     * 
+     * @param storeDirectory
+     * @param encrypted
+     * @param version primary or active version
+     * @return
+     * @throws KeyczarException 
+     */
+    public Signer getSigner(String storeDirectory, boolean encrypted, int version) throws KeyczarException {
+        
+        Signer signer = encrypted 
+                ? getHolder(storeDirectory).getSigner(version) 
+                : new Signer(new VersionReader(new KeyczarFileReader(storeDirectory), version));
+        
+        return signer;
+    }
+    
     
     
     
@@ -189,6 +355,7 @@ public class KeySystem {
     
     /**
      * Revoke an inactive key - will remove all key matter - use with caution
+     * The decrypted key held for the version is zeroed
      * @param storeDirectory
      * @param version the version to revoke 
      * @param encrypted if the key is encrypted (eg private rsa key)
@@ -198,6 +365,15 @@ public class KeySystem {
         GenericKeyczar genericKeyczar = getGenericKeyczar(storeDirectory, encrypted);
         genericKeyczar.revoke(version);
         save(genericKeyczar, storeDirectory, encrypted);
+        
+        KeyHolder holder = keyHolders.get(storeDirectory);
+        if(holder != null) {
+            holder.wipe(version);
+        }
+        
+        //keyczar can give the version number to the next key added
+        removeCreated(storeDirectory, version);
+        removeHashes(storeDirectory, version);
     }
     
     
@@ -230,6 +406,9 @@ public class KeySystem {
                     "--location=".concat(storeDirectory), 
                     "--crypter=".concat(privateDirectory), 
                     "--status=" + status});
+        
+        clearKeyczars(storeDirectory);
+        recordCreated(storeDirectory);
     }
     
     /**
@@ -252,12 +431,15 @@ public class KeySystem {
         
         k.createCryptStore("keys-asym", asymmetricEncryptedStoreDirectory, true);
         k.createCryptStore("keys-sym", symmetricEncryptedStoreDirectory, false);
+        k.createSignStore("keys-hmac", hmacEncryptedStoreDirectory);
         
         k.addEncryptedKey(asymmetricEncryptedStoreDirectory, true);
         k.addEncryptedKey(symmetricEncryptedStoreDirectory, true);
+        k.addEncryptedKey(hmacEncryptedStoreDirectory, true);
         for(int i = 1; i < initialNumberOfKeys; i++) {
             k.addEncryptedKey(asymmetricEncryptedStoreDirectory, false);
             k.addEncryptedKey(symmetricEncryptedStoreDirectory, false);
+            k.addEncryptedKey(hmacEncryptedStoreDirectory, false);
         }
         
         k.updatePubKeyStore();
@@ -277,10 +459,11 @@ public class KeySystem {
 //                new KeyczarEncryptedReader(new KeyczarFileReader(storeDirectory), keyEncrypter);
 //            genericKeyczar.writeEncrypted(storeDirectory, new Encrypter(keyczarEncryptedReader));
             genericKeyczar.getMetadata().setEncrypted(true); //or verify and throw exception if not what expect
-            genericKeyczar.writeFile(genericKeyczar.getMetadata().toString(), storeDirectory + KeyczarFileReader.META_FILE);
+            writeMetadata(storeDirectory, genericKeyczar.getMetadata());
+            clearKeyczars(storeDirectory);
         } else {
             genericKeyczar.getMetadata().setEncrypted(false);
-            genericKeyczar.writeFile(genericKeyczar.getMetadata().toString(), storeDirectory + KeyczarFileReader.META_FILE);
+            writeMetadata(storeDirectory, genericKeyczar.getMetadata());
             //genericKeyczar.write(storeDirectory);
         }
     }
@@ -300,6 +483,8 @@ public class KeySystem {
                     "addKey", 
                     "--location=".concat(storeDirectory), 
                     "--status=" + status});
+        
+        recordCreated(storeDirectory);
     }
     
     private void createCryptStore(String name, String location, boolean asymmetric) {
@@ -316,15 +501,77 @@ public class KeySystem {
         KeyczarTool.main(params.toArray(new String[params.size()]));
     }
     
-    private GenericKeyczar getGenericKeyczar(String storeDirectory, boolean encrypted) throws KeyczarException {
-        KeyczarReader reader = new KeyczarFileReader(storeDirectory);
+    /**
+     * HMAC key store for signing, the default keyczar sign key type
+     * @param name
+     * @param location 
+     */
+    private void createSignStore(String name, String location) {
         
-        if(encrypted) {
-            Crypter keyCrypter = new Crypter(privateDirectory);
-            reader = new KeyczarEncryptedReader(reader, keyCrypter);
+        KeyczarTool.main(
+                new String[] {
+                    "create", 
+                    "--location=".concat(location), 
+                    "--purpose=sign", 
+                    "--name=".concat(name)});
+    }
+    
+    private GenericKeyczar getGenericKeyczar(String storeDirectory, boolean encrypted) throws KeyczarException {
+        return new GenericKeyczar(getReader(storeDirectory, encrypted));
+    }
+    
+    /**
+     * Encrypted stores are read through the store's KeyHolder so keys are only
+     * decrypted once
+     * 
+     * A keyczar built from this reads every version, only use where all are
+     * needed eg. to change and save the store
+     * @param storeDirectory
+     * @param encrypted
+     * @return 
+     */
+    private KeyczarReader getReader(String storeDirectory, boolean encrypted) {
+        return encrypted ? getHolder(storeDirectory) : new KeyczarFileReader(storeDirectory);
+    }
+    
+    /**
+     * @param storeDirectory
+     * @return the store's holder, a new one if there is none or it was wiped
+     */
+    KeyHolder getHolder(String storeDirectory) {
+        KeyHolder holder = keyHolders.get(storeDirectory);
+        while(holder == null || holder.isWiped()) {
+            KeyHolder created = new KeyHolder(storeDirectory, privateDirectory);
+            if(holder == null) {
+                keyHolders.putIfAbsent(storeDirectory, created);
+            } else {
+                keyHolders.replace(storeDirectory, holder, created);
+            }
+            holder = keyHolders.get(storeDirectory);
         }
-
-        return new GenericKeyczar(reader);
+        return holder;
+    }
+    
+    private KeyMetadata getMetadata(String storeDirectory, boolean encrypted) throws KeyczarException {
+        return KeyMetadata.read(getReader(storeDirectory, encrypted).getMetadata());
+    }
+    
+    /**
+     * The store metadata changed, keyczars built before have the old primary
+     * @param storeDirectory 
+     */
+    private static void clearKeyczars(String storeDirectory) {
+        KeyHolder holder = keyHolders.get(storeDirectory);
+        if(holder != null) {
+            holder.clearKeyczars();
+        }
+    }
+    
+    private static void wipeKeys() {
+        for(KeyHolder holder : keyHolders.values()) {
+            holder.wipe();
+        }
+        keyHolders.clear();
     }
     
     /**
@@ -344,16 +591,254 @@ public class KeySystem {
      * Add a key to all the stores and set them each the new primary in their store
      * Note, all keys in the encrypted stores will be re-encrypted with the new private key
      * generated and made primary as part of this addition
+     * 
+     * All decrypted keys held are zeroed and decrypted again as needed
      * @throws KeyczarException 
      */
     protected static void rotate() throws KeyczarException {
         KeySystem instance = KeySystem.getInstance();
+        wipeKeys();
         instance.addPlainKey(privateDirectory, true);
         instance.addEncryptedKey(asymmetricEncryptedStoreDirectory, true);
         instance.addEncryptedKey(symmetricEncryptedStoreDirectory, true);
+        instance.addEncryptedKey(hmacEncryptedStoreDirectory, true);
         instance.updatePubKeyStore();
     }
     
+    /**
+     * Add a key to one store and make it the primary, the public key store is
+     * updated if it is the asymmetric store.  The store's decrypted keys held 
+     * are zeroed
+     * 
+     * The key is generated (slow for RSA) as an active version without any
+     * lock, the "crypt" lock is only held to swap the primary in the metadata
+     * and wipe the held keys, so Crypt does not encrypt part way through
+     * @param storeDirectory
+     * @throws KeyczarException 
+     */
+    protected static void rotate(String storeDirectory) throws KeyczarException {
+        KeySystem instance = KeySystem.getInstance();
+        
+        int newest = getNewestVersion(storeDirectory);
+        if(storeDirectory.equals(privateDirectory)) {
+            instance.addPlainKey(privateDirectory, false);
+        } else {
+            instance.addEncryptedKey(storeDirectory, false);
+        }
+        int version = getNewestVersion(storeDirectory);
+        if(version == newest) {
+            //KeyczarTool reports failures rather than throwing
+            throw new KeyczarException("Key not added: " + storeDirectory);
+        }
+        
+        synchronized ("crypt") {
+            setPrimary(storeDirectory, version);
+            
+            KeyHolder holder = keyHolders.remove(storeDirectory);
+            if(holder != null) {
+                holder.wipe();
+            }
+        }
+        
+        if(storeDirectory.equals(asymmetricEncryptedStoreDirectory)) {
+            instance.updatePubKeyStore();
+        }
+    }
+    
+    /**
+     * Make a version the primary, the prior primary active, by rewriting the
+     * metadata only - no keys are read
+     * @param storeDirectory
+     * @param version
+     * @throws KeyczarException 
+     */
+    private static void setPrimary(String storeDirectory, int version) throws KeyczarException {
+        
+        KeyMetadata metadata = KeyMetadata.read(new KeyczarFileReader(storeDirectory).getMetadata());
+        for(KeyVersion keyVersion : metadata.getVersions()) {
+            if(keyVersion.getVersionNumber() == version) {
+                keyVersion.setStatus(KeyStatus.PRIMARY);
+            } else if(keyVersion.getStatus() == KeyStatus.PRIMARY) {
+                keyVersion.setStatus(KeyStatus.ACTIVE);
+            }
+        }
+        
+        writeMetadata(storeDirectory, metadata);
+    }
+    
+    /**
+     * The metadata is replaced in one move rather than rewritten in place, as
+     * crypters read it without a lock
+     * @param storeDirectory
+     * @param metadata
+     * @throws KeyczarException 
+     */
+    private static void writeMetadata(String storeDirectory, KeyMetadata metadata) throws KeyczarException {
+        try {
+            writeAtomically(storeDirectory, KeyczarFileReader.META_FILE, 
+                    metadata.toString().getBytes(StandardCharsets.UTF_8));
+        } catch(IOException ex) {
+            throw new KeyczarException("Metadata not written: " + ex.getMessage());
+        }
+    }
+    
+    /**
+     * @param storeDirectory
+     * @return if the store is one KeySystem adds keys to - the private 
+     * directory and the encrypted stores, the public store is exported from
+     * the asymmetric one
+     */
+    static boolean isManagedStore(String storeDirectory) {
+        return storeDirectory.equals(privateDirectory)
+                || storeDirectory.equals(symmetricEncryptedStoreDirectory)
+                || storeDirectory.equals(asymmetricEncryptedStoreDirectory)
+                || storeDirectory.equals(hmacEncryptedStoreDirectory);
+    }
+    
+    private static int getNewestVersion(String storeDirectory) throws KeyczarException {
+        int retVal = 0;
+        for(KeyVersion version : KeyMetadata.read(new KeyczarFileReader(storeDirectory).getMetadata()).getVersions()) {
+            retVal = Math.max(retVal, version.getVersionNumber());
+        }
+        return retVal;
+    }
+    
+    /**
+     * When a key version was added, eg. for rotation by age
+     * 
+     * KeySystem records the time as it adds each key.  For versions added 
+     * before that, or by other tools, it is the key file's modified time - 
+     * which copying or restoring the store resets
+     * 
+     * @param storeDirectory
+     * @param version
+     * @return time added in millis, 0 if not known
+     */
+    public static synchronized long getCreated(String storeDirectory, int version) {
+        
+        String created = readCreated(storeDirectory).getProperty(String.valueOf(version));
+        if(created != null) {
+            return Long.parseLong(created);
+        }
+        return new File(storeDirectory, String.valueOf(version)).lastModified();
+    }
+    
+    /**
+     * Record the time the newest version of a store was added, if not already
+     * recorded (eg. as KeyczarTool failed to add one)
+     * @param storeDirectory 
+     */
+    private static synchronized void recordCreated(String storeDirectory) {
+        try {
+            String version = String.valueOf(getNewestVersion(storeDirectory));
+            Properties created = readCreated(storeDirectory);
+            if(created.getProperty(version) == null) {
+                created.setProperty(version, String.valueOf(System.currentTimeMillis()));
+                writeCreated(storeDirectory, created);
+            }
+        } catch(KeyczarException ex) {
+            Logger.getLogger(KeySystem.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    private static synchronized void removeCreated(String storeDirectory, int version) {
+        Properties created = readCreated(storeDirectory);
+        if(created.remove(String.valueOf(version)) != null) {
+            writeCreated(storeDirectory, created);
+        }
+    }
+    
+    private static void writeCreated(String storeDirectory, Properties created) {
+        writeProperties(storeDirectory, CREATED_FILE, created, "key version = time added in millis");
+    }
+    
+    private static Properties readCreated(String storeDirectory) {
+        return readProperties(storeDirectory, CREATED_FILE);
+    }
+    
+    /**
+     * The key hash index of a store - the version of each key hash seen, so
+     * the version a ciphertext needs is found without decrypting versions to
+     * compare hashes (see LazyCrypter).  Filled in as versions are read, key
+     * hashes are not secret
+     * @param storeDirectory
+     * @return web safe base64 key hash -> version
+     */
+    static Map<String, Integer> getHashes(String storeDirectory) {
+        
+        Map<String, Integer> retVal = new HashMap<>();
+        synchronized(hashesLock) {
+            Properties hashes = readProperties(storeDirectory, HASHES_FILE);
+            for(String hash : hashes.stringPropertyNames()) {
+                retVal.put(hash, Integer.valueOf(hashes.getProperty(hash)));
+            }
+        }
+        return retVal;
+    }
+    
+    /**
+     * @param storeDirectory
+     * @param hash web safe base64 key hash
+     * @param version 
+     */
+    static void recordHash(String storeDirectory, String hash, int version) {
+        synchronized(hashesLock) {
+            Properties hashes = readProperties(storeDirectory, HASHES_FILE);
+            if(! String.valueOf(version).equals(hashes.getProperty(hash))) {
+                hashes.setProperty(hash, String.valueOf(version));
+                writeProperties(storeDirectory, HASHES_FILE, hashes, "key hash = key version");
+            }
+        }
+    }
+    
+    private static void removeHashes(String storeDirectory, int version) {
+        synchronized(hashesLock) {
+            Properties hashes = readProperties(storeDirectory, HASHES_FILE);
+            if(hashes.values().removeAll(Collections.singleton(String.valueOf(version)))) {
+                writeProperties(storeDirectory, HASHES_FILE, hashes, "key hash = key version");
+            }
+        }
+    }
+    
+    private static void writeProperties(String storeDirectory, String name, Properties properties, 
+            String comments) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            properties.store(out, comments);
+            writeAtomically(storeDirectory, name, out.toByteArray());
+        } catch(IOException ex) {
+            Logger.getLogger(KeySystem.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    /**
+     * Written to a temporary file in the store moved over the old one, so a
+     * reader sees the old or the new file and never part of one
+     */
+    private static void writeAtomically(String storeDirectory, String name, byte[] bytes) throws IOException {
+        Path file = Paths.get(storeDirectory + name).toAbsolutePath();
+        Path temp = Files.createTempFile(file.getParent(), name + ".", ".tmp");
+        try {
+            Files.write(temp, bytes);
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+    
+    private static Properties readProperties(String storeDirectory, String name) {
+        Properties retVal = new Properties();
+        File file = new File(storeDirectory + name);
+        if(file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                retVal.load(in);
+            } catch(IOException ex) {
+                Logger.getLogger(KeySystem.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return retVal;
+    }
+    
     /**
      * Promote encrypted key to primary - note, this will demote the current primary
      * to active.  If this is a decrypt operation for a legacy value remember to
@@ -369,12 +854,18 @@ public class KeySystem {
             throws KeyczarException {
         
         KeySystem instance = KeySystem.getInstance();
-        GenericKeyczar genericKeyczar = instance.getGenericKeyczar(storeDirectory, encrypted);
         
-        int priorPrimary = genericKeyczar.primaryVersion.getVersionNumber();
+        int priorPrimary = getCurrentPrimary(storeDirectory, encrypted);
         
-        KeyVersion keyVersion = genericKeyczar.getVersion(version);
-        KeyStatus currentStatus = keyVersion.getStatus();
+        KeyStatus currentStatus = null;
+        for(KeyVersion keyVersion : instance.getMetadata(storeDirectory, encrypted).getVersions()) {
+            if(keyVersion.getVersionNumber() == version) {
+                currentStatus = keyVersion.getStatus();
+            }
+        }
+        if(currentStatus == null) {
+            throw new KeyczarException("No such version: " + version);
+        }
         
         int promotions = 0;
         
@@ -398,6 +889,7 @@ public class KeySystem {
     
     /**
      * 
+     * Reads the metadata only, no keys are decrypted
      * @param storeDirectory
      * @param encrypted whether the store directory keys are encrypted
      * @return the KeyVersion number plus 1 (as it seems to be zero based)
@@ -407,11 +899,200 @@ public class KeySystem {
             throws KeyczarException {
         
         KeySystem instance = KeySystem.getInstance();
-        GenericKeyczar genericKeyczar = instance.getGenericKeyczar(storeDirectory, encrypted);
         
-        KeyVersion keyVersion = genericKeyczar.primaryVersion;
+        for(KeyVersion keyVersion : instance.getMetadata(storeDirectory, encrypted).getVersions()) {
+            if(keyVersion.getStatus() == KeyStatus.PRIMARY) {
+                return keyVersion.getVersionNumber();
+            }
+        }
+        throw new NoPrimaryKeyException();
+    }
+    
+    /**
+     * Reads the metadata only, no keys are decrypted
+     * 
+     * @param storeDirectory
+     * @return the primary and active version numbers, primary first - the
+     * versions a value may be encrypted or signed under
+     * @throws KeyczarException 
+     */
+    public static List<Integer> getActiveVersions(String storeDirectory) throws KeyczarException {
+        
+        KeyMetadata metadata = KeyMetadata.read(new KeyczarFileReader(storeDirectory).getMetadata());
+        
+        List<Integer> retVal = new ArrayList<>();
+        for(KeyVersion version : metadata.getVersions()) {
+            if(version.getStatus() == KeyStatus.PRIMARY) {
+                retVal.add(0, version.getVersionNumber());
+            } else if(version.getStatus() == KeyStatus.ACTIVE) {
+                retVal.add(version.getVersionNumber());
+            }
+        }
         
-        return keyVersion.getVersionNumber();
+        return retVal;
+    }
+    
+    /**
+     * Find the version of the key that produced a ciphertext from the key hash
+     * in the ciphertext header - no decryption is done
+     * 
+     * @param keyczar a crypter (or other keyczar) loaded from the store the 
+     * ciphertext was produced with
+     * @param ciphertext web safe base64 ciphertext
+     * @return the key version number
+     * @throws KeyczarException if the ciphertext is malformed or no key in the
+     * keyczar matches its key hash
+     */
+    public static Integer getKeyVersion(Keyczar keyczar, String ciphertext) throws KeyczarException {
+        
+        //only the header is needed - 8 base64 characters are 6 bytes
+        byte[] bytes = Base64Coder.decodeWebSafe(
+                ciphertext.length() > 8 ? ciphertext.substring(0, 8) : ciphertext);
+        if(bytes.length < Keyczar.HEADER_SIZE) {
+            throw new ShortCiphertextException(bytes.length);
+        }
+        byte[] hash = Arrays.copyOfRange(bytes, 1, Keyczar.HEADER_SIZE);
+        
+        //a LazyCrypter reads the version if it has not yet, other keyczars 
+        //have every version in maps not changed after construction
+        if(keyczar instanceof LazyCrypter) {
+            Integer version = ((LazyCrypter) keyczar).getVersion(hash);
+            if(version != null) {
+                return version;
+            }
+        } else {
+            KeyczarKey key = keyczar.getKey(hash);
+            for(Map.Entry<KeyVersion, KeyczarKey> entry : keyczar.versionMap.entrySet()) {
+                if(entry.getValue() == key) {
+                    return entry.getKey().getVersionNumber();
+                }
+            }
+        }
+        throw new KeyNotFoundException(hash);
+    }
+    
+    /**
+     * @param keyczar
+     * @return the primary version of an already loaded keyczar, saves reading
+     * the store again as getCurrentPrimary does
+     */
+    public static Integer getPrimaryVersion(Keyczar keyczar) {
+        return keyczar.primaryVersion.getVersionNumber();
+    }
+    
+    /**
+     * Count a decrypt under a key version, use getDecryptCounts to see when
+     * a non-primary version is no longer read and is safe to revoke
+     * 
+     * @param storeDirectory
+     * @param version 
+     */
+    public static void recordDecrypt(String storeDirectory, int version) {
+        add(decryptCounts, storeDirectory, version, 1);
+    }
+    
+    /**
+     * As recordDecrypt for a number of decrypts, eg. totalled over a batch
+     * 
+     * @param storeDirectory
+     * @param version
+     * @param decrypts 
+     */
+    public static void recordDecrypt(String storeDirectory, int version, long decrypts) {
+        add(decryptCounts, storeDirectory, version, decrypts);
+    }
+    
+    /**
+     * @param storeDirectory
+     * @return snapshot of key version -> decrypts recorded since start up, 
+     * ordered by version
+     */
+    public static Map<Integer, Long> getDecryptCounts(String storeDirectory) {
+        return snapshot(decryptCounts, storeDirectory);
+    }
+    
+    /**
+     * Count an encrypt (or sign) under a key version, used by rotation 
+     * policies on the number of encryptions or bytes encrypted under a primary
+     * 
+     * @param storeDirectory
+     * @param version
+     * @param plaintext 
+     */
+    public static void recordEncrypt(String storeDirectory, int version, String plaintext) {
+        add(encryptCounts, storeDirectory, version, 1);
+        add(encryptBytes, storeDirectory, version, utf8Length(plaintext));
+    }
+    
+    /**
+     * @param value
+     * @return length of the value encoded as UTF-8, without encoding it - an
+     * unpaired surrogate counts as the one byte '?' it is encoded as
+     */
+    static long utf8Length(String value) {
+        long retVal = 0;
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c < 0x80) {
+                retVal++;
+            } else if(c < 0x800) {
+                retVal += 2;
+            } else if(Character.isHighSurrogate(c) && i + 1 < value.length() 
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                retVal += 4;
+                i++;
+            } else if(Character.isSurrogate(c)) {
+                retVal++;
+            } else {
+                retVal += 3;
+            }
+        }
+        return retVal;
+    }
+    
+    /**
+     * @param storeDirectory
+     * @return snapshot of key version -> encrypts recorded since start up, 
+     * ordered by version
+     */
+    public static Map<Integer, Long> getEncryptCounts(String storeDirectory) {
+        return snapshot(encryptCounts, storeDirectory);
+    }
+    
+    /**
+     * @param storeDirectory
+     * @return snapshot of key version -> plaintext bytes encrypted since start
+     * up, ordered by version
+     */
+    public static Map<Integer, Long> getEncryptedBytes(String storeDirectory) {
+        return snapshot(encryptBytes, storeDirectory);
+    }
+    
+    private static void add(ConcurrentMap<String, ConcurrentMap<Integer, AtomicLong>> totals, 
+            String storeDirectory, int version, long delta) {
+        ConcurrentMap<Integer, AtomicLong> counts = totals.get(storeDirectory);
+        if(counts == null) {
+            totals.putIfAbsent(storeDirectory, new ConcurrentHashMap<Integer, AtomicLong>());
+            counts = totals.get(storeDirectory);
+        }
+        AtomicLong count = counts.get(version);
+        if(count == null) {
+            counts.putIfAbsent(version, new AtomicLong());
+            count = counts.get(version);
+        }
+        count.addAndGet(delta);
+    }
+    
+    private static Map<Integer, Long> snapshot(ConcurrentMap<String, ConcurrentMap<Integer, AtomicLong>> totals, 
+            String storeDirectory) {
+        Map<Integer, Long> retVal = new TreeMap<>();
+        ConcurrentMap<Integer, AtomicLong> counts = totals.get(storeDirectory);
+        if(counts != null) {
+            for(Map.Entry<Integer, AtomicLong> entry : counts.entrySet()) {
+                retVal.put(entry.getKey(), entry.getValue().get());
+            }
+        }
+        return retVal;
     }
     
     public static void main(String[] args) throws KeyczarException {
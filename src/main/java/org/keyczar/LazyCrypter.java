@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2016, Mark Bridge <j2eewebtier@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.keyczar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.keyczar.enums.KeyStatus;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.util.Base64Coder;
+
+/**
+ * A crypter that starts with only the primary key of an encrypted store and
+ * decrypts other versions the first time a ciphertext needs one, so loading a
+ * store with a long rotation history costs the same as loading one version
+ * 
+ * If the store's hash index has the ciphertext's key hash only that version
+ * is read.  Otherwise only versions not in the index are tried, active before
+ * inactive and newest first, and each is indexed as it is read - so a version
+ * is decrypted to compare hashes at most once over the life of the store, and
+ * once every version is indexed a hash the store does not have (an old or 
+ * foreign ciphertext, garbage) costs no decryption.  Hashes not found are 
+ * remembered so repeating one does not read the metadata again, a key added
+ * to the store later is seen by the crypter KeySystem builds after the add
+ * 
+ * The metadata and index are read without a lock, only decrypting a version
+ * is synchronized so two threads do not decrypt the same one
+ * 
+ * Keys read later are kept in this class's concurrent maps, never added to the 
+ * keyczar maps - those are plain HashMaps read without a lock on every 
+ * encrypt, so they are only written by the constructor
+ * 
+ * When the holder is wiped the keys read are dropped from here and the 
+ * crypter no longer encrypts, the primary stays in the keyczar maps until the
+ * crypter is garbage
+ * 
+ * @author Mark Bridge <j2eewebtier@gmail.com>
+ */
+class LazyCrypter extends Crypter {
+    
+    private final KeyHolder holder;
+    
+    /**
+     * web safe base64 key hash -> key / version, for every version read 
+     * including the primary
+     */
+    private final ConcurrentMap<String, KeyczarKey> keys = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Integer> versions = new ConcurrentHashMap<>();
+    
+    /**
+     * web safe base64 key hashes not in the store, cleared when it reaches
+     * MAX_MISSES so a flood of distinct garbage does not grow it without bound
+     */
+    private final Set<String> misses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private static final int MAX_MISSES = 10000;
+    
+    private volatile boolean dropped;
+    
+    LazyCrypter(KeyHolder holder) throws KeyczarException {
+        super(new VersionReader(holder));
+        this.holder = holder;
+        
+        KeyczarKey primary = getPrimaryKey();
+        put(primary, primaryVersion.getVersionNumber());
+    }
+    
+    /**
+     * Lock free once the version is read or the hash is known to be missing
+     */
+    @Override
+    KeyczarKey getKey(byte[] hash) {
+        
+        String encoded = Base64Coder.encodeWebSafe(hash);
+        KeyczarKey retVal = keys.get(encoded);
+        if(retVal == null && ! misses.contains(encoded)) {
+            try {
+                retVal = load(hash);
+            } catch(KeyczarException ex) {
+                Logger.getLogger(LazyCrypter.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        
+        return retVal;
+    }
+    
+    /**
+     * @return null once dropped, so encrypt fails with NoPrimaryKeyException
+     */
+    @Override
+    KeyczarKey getPrimaryKey() {
+        return dropped ? null : super.getPrimaryKey();
+    }
+    
+    /**
+     * Forget every key read, a later read fails as the holder is wiped
+     */
+    void drop() {
+        dropped = true;
+        keys.clear();
+        versions.clear();
+    }
+    
+    /**
+     * Forget one version, eg. when it is revoked
+     * @param version 
+     */
+    void drop(int version) {
+        for(Map.Entry<String, Integer> entry : versions.entrySet()) {
+            if(entry.getValue() == version) {
+                keys.remove(entry.getKey());
+                versions.remove(entry.getKey());
+            }
+        }
+    }
+    
+    /**
+     * @param hash
+     * @return the version of the key with the hash, read if not yet read, null
+     * if no version of the store has the hash
+     */
+    Integer getVersion(byte[] hash) {
+        
+        if(getKey(hash) == null) {
+            return null;
+        }
+        return versions.get(Base64Coder.encodeWebSafe(hash));
+    }
+    
+    /**
+     * Under the holder lock, as the holder drops keys from here under it when
+     * wiped, so a key read just before the wipe is not kept after it
+     */
+    private void put(KeyczarKey key, int version) throws KeyczarException {
+        synchronized(holder) {
+            if(dropped) {
+                throw new KeyczarException("Keys wiped");
+            }
+            holder.putVersion(key.hash(), version);
+            //key first, a version seen read has its key readable
+            keys.put(Base64Coder.encodeWebSafe(key.hash()), key);
+            versions.put(Base64Coder.encodeWebSafe(key.hash()), version);
+        }
+    }
+    
+    /**
+     * @param hash
+     * @return the key, null if no version of the store has the hash
+     * @throws KeyczarException 
+     */
+    private KeyczarKey load(byte[] hash) throws KeyczarException {
+        
+        String encoded = Base64Coder.encodeWebSafe(hash);
+        
+        List<KeyVersion> candidates = new ArrayList<>();
+        KeyVersion indexed = null;
+        Integer known = holder.getVersion(hash);
+        for(KeyVersion version : KeyMetadata.read(holder.getMetadata()).getVersions()) {
+            if(versions.containsValue(version.getVersionNumber())) {
+                continue;
+            }
+            if(known != null && version.getVersionNumber() == known) {
+                indexed = version;
+            } else if(! holder.isIndexed(version.getVersionNumber())) {
+                candidates.add(version);
+            }
+        }
+        
+        Collections.sort(candidates, new Comparator<KeyVersion>() {
+            public int compare(KeyVersion a, KeyVersion b) {
+                int inactive = Boolean.compare(a.getStatus() == KeyStatus.INACTIVE, 
+                        b.getStatus() == KeyStatus.INACTIVE);
+                if(inactive != 0) {
+                    return inactive;
+                }
+                return Integer.compare(b.getVersionNumber(), a.getVersionNumber());
+            }
+        });
+        //an indexed version that turns out to have another hash (the index is
+        //stale, eg. a version number reused) falls back to the search
+        if(indexed != null) {
+            candidates.add(0, indexed);
+        }
+        
+        if(! candidates.isEmpty()) {
+            synchronized(this) {
+                for(KeyVersion version : candidates) {
+                    KeyczarKey key = keys.get(encoded);
+                    if(key != null) {
+                        return key;
+                    }
+                    if(versions.containsValue(version.getVersionNumber())) {
+                        continue;
+                    }
+                    key = new Crypter(new VersionReader(holder, version.getVersionNumber())).getPrimaryKey();
+                    put(key, version.getVersionNumber());
+                    if(Arrays.equals(hash, key.hash())) {
+                        return key;
+                    }
+                }
+            }
+        }
+        
+        //read by another thread since the metadata was read
+        KeyczarKey key = keys.get(encoded);
+        if(key != null) {
+            return key;
+        }
+        
+        if(misses.size() >= MAX_MISSES) {
+            misses.clear();
+        }
+        misses.add(encoded);
+        
+        return null;
+    }
+}
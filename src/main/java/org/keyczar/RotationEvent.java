@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2016, Mark Bridge <j2eewebtier@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.keyczar;
+
+/**
+ * A rotation done (or failed) by the RotationScheduler
+ * 
+ * @author Mark Bridge <j2eewebtier@gmail.com>
+ */
+public class RotationEvent {
+    
+    private final String storeDirectory;
+    private final String reason;
+    private final int priorVersion;
+    private final int newVersion;
+    private final long startMillis;
+    private final long durationMillis;
+    private final String error;
+    
+    RotationEvent(String storeDirectory, String reason, int priorVersion, int newVersion, 
+            long startMillis, long durationMillis, String error) {
+        this.storeDirectory = storeDirectory;
+        this.reason = reason;
+        this.priorVersion = priorVersion;
+        this.newVersion = newVersion;
+        this.startMillis = startMillis;
+        this.durationMillis = durationMillis;
+        this.error = error;
+    }
+    
+    public String getStoreDirectory() {
+        return storeDirectory;
+    }
+    
+    /**
+     * @return the limit reached - age, encryptions, bytes - or manual
+     */
+    public String getReason() {
+        return reason;
+    }
+    
+    public int getPriorVersion() {
+        return priorVersion;
+    }
+    
+    /**
+     * @return the new primary, -1 if failed
+     */
+    public int getNewVersion() {
+        return newVersion;
+    }
+    
+    public long getStartMillis() {
+        return startMillis;
+    }
+    
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+    
+    /**
+     * @return null if succeeded
+     */
+    public String getError() {
+        return error;
+    }
+    
+    public boolean isSuccess() {
+        return error == null;
+    }
+    
+    public String toString() {
+        return "Rotated " + storeDirectory + " (" + reason + ") " + priorVersion + " -> " + newVersion 
+                + " in " + durationMillis + "ms" + (error == null ? "" : ": " + error);
+    }
+}
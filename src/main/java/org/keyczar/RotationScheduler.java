@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2016, Mark Bridge <j2eewebtier@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.keyczar;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.keyczar.exceptions.KeyczarException;
+
+/**
+ * Rotates stores on a background thread when their RotationPolicy limits are
+ * reached - start with KeySystem.startRotationScheduler
+ * 
+ * Policies are checked every check interval, moved at random by the jitter so
+ * nodes sharing a store do not all find it due at the same time.  A store found
+ * due is rotated with KeySystem.rotate(storeDirectory), a new primary makes the
+ * age and usage of the primary start again from zero so it will not be rotated
+ * twice
+ * 
+ * Each rotation is kept as a RotationEvent (the last 100) and passed to any
+ * listeners for monitoring
+ * 
+ * @author Mark Bridge <j2eewebtier@gmail.com>
+ */
+public class RotationScheduler {
+    
+    public interface Listener {
+        void rotated(RotationEvent event);
+    }
+    
+    private static final int MAX_EVENTS = 100;
+    
+    private final long checkIntervalMillis;
+    private final double jitter;
+    private final Random random = new Random();
+    
+    private final ConcurrentMap<String, RotationPolicy> policies = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Deque<RotationEvent> events = new ArrayDeque<>();
+    
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "key-rotation");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    
+    RotationScheduler(long checkIntervalMillis, double jitter) {
+        this.checkIntervalMillis = Math.max(1, checkIntervalMillis);
+        this.jitter = Math.min(1, Math.max(0, jitter));
+    }
+    
+    /**
+     * @param storeDirectory the private directory or one of the encrypted 
+     * stores as configured in KeySystem
+     * @param policy replaces any policy for the store
+     * @throws IllegalArgumentException for any other directory
+     */
+    public void setPolicy(String storeDirectory, RotationPolicy policy) {
+        checkStore(storeDirectory);
+        policies.put(storeDirectory, policy);
+    }
+    
+    public void removePolicy(String storeDirectory) {
+        policies.remove(storeDirectory);
+    }
+    
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+    
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * @return recent rotations, oldest first
+     */
+    public synchronized List<RotationEvent> getEvents() {
+        return new ArrayList<>(events);
+    }
+    
+    /**
+     * Rotate a store now on the scheduler thread, whatever its policy
+     * @param storeDirectory as setPolicy
+     * @return the rotation
+     * @throws IllegalArgumentException as setPolicy
+     */
+    public Future<RotationEvent> rotateNow(final String storeDirectory) {
+        checkStore(storeDirectory);
+        return executor.submit(new Callable<RotationEvent>() {
+            public RotationEvent call() {
+                return rotate(storeDirectory, "manual");
+            }
+        });
+    }
+    
+    /**
+     * KeySystem.rotate adds a key to any directory it is given, so only the
+     * stores it manages are accepted
+     */
+    private static void checkStore(String storeDirectory) {
+        if(! KeySystem.isManagedStore(storeDirectory)) {
+            throw new IllegalArgumentException("Not a managed key store: " + storeDirectory);
+        }
+    }
+    
+    void start() {
+        schedule((long) (random.nextDouble() * checkIntervalMillis));
+    }
+    
+    void stop() {
+        executor.shutdownNow();
+    }
+    
+    private void schedule(long delayMillis) {
+        try {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    check();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch(RejectedExecutionException ex) {
+            //stopped
+        }
+    }
+    
+    private void check() {
+        try {
+            for(Map.Entry<String, RotationPolicy> entry : policies.entrySet()) {
+                String reason = null;
+                try {
+                    reason = due(entry.getKey(), entry.getValue());
+                } catch(KeyczarException ex) {
+                    Logger.getLogger(RotationScheduler.class.getName()).log(Level.SEVERE, null, ex);
+                }
+                if(reason != null) {
+                    rotate(entry.getKey(), reason);
+                }
+            }
+        } finally {
+            long delay = (long) (checkIntervalMillis * (1 + jitter * (random.nextDouble() * 2 - 1)));
+            schedule(Math.max(1, delay));
+        }
+    }
+    
+    /**
+     * @param storeDirectory
+     * @param policy
+     * @return the limit reached, null if none
+     * @throws KeyczarException 
+     */
+    private String due(String storeDirectory, RotationPolicy policy) throws KeyczarException {
+        
+        int primary = getPrimary(storeDirectory);
+        
+        if(policy.getMaxAgeMillis() > 0) {
+            long created = KeySystem.getCreated(storeDirectory, primary);
+            if(created > 0 && System.currentTimeMillis() - created >= policy.getMaxAgeMillis()) {
+                return "age";
+            }
+        }
+        
+        Long encryptions = KeySystem.getEncryptCounts(storeDirectory).get(primary);
+        if(policy.getMaxEncryptions() > 0 && encryptions != null 
+                && encryptions >= policy.getMaxEncryptions()) {
+            return "encryptions";
+        }
+        
+        Long bytes = KeySystem.getEncryptedBytes(storeDirectory).get(primary);
+        if(policy.getMaxBytes() > 0 && bytes != null && bytes >= policy.getMaxBytes()) {
+            return "bytes";
+        }
+        
+        return null;
+    }
+    
+    private RotationEvent rotate(String storeDirectory, String reason) {
+        
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+        
+        int priorVersion = -1;
+        int newVersion = -1;
+        String error = null;
+        
+        try {
+            priorVersion = getPrimary(storeDirectory);
+            KeySystem.rotate(storeDirectory);
+            newVersion = getPrimary(storeDirectory);
+            
+            //KeyczarTool reports failures rather than throwing
+            if(newVersion == priorVersion) {
+                newVersion = -1;
+                error = "Primary not changed";
+            }
+        } catch(KeyczarException | RuntimeException ex) {
+            error = String.valueOf(ex.getMessage());
+        }
+        
+        RotationEvent event = new RotationEvent(storeDirectory, reason, priorVersion, newVersion, 
+                startMillis, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), error);
+        
+        synchronized(this) {
+            events.addLast(event);
+            if(events.size() > MAX_EVENTS) {
+                events.removeFirst();
+            }
+        }
+        
+        Logger.getLogger(RotationScheduler.class.getName())
+                .log(event.isSuccess() ? Level.INFO : Level.SEVERE, event.toString());
+        
+        for(Listener listener : listeners) {
+            try {
+                listener.rotated(event);
+            } catch(RuntimeException ex) {
+                Logger.getLogger(RotationScheduler.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        
+        return event;
+    }
+    
+    /**
+     * From the metadata only, no keys are read
+     */
+    private static int getPrimary(String storeDirectory) throws KeyczarException {
+        List<Integer> versions = KeySystem.getActiveVersions(storeDirectory);
+        if(versions.isEmpty()) {
+            throw new KeyczarException("No primary: " + storeDirectory);
+        }
+        return versions.get(0);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016, Mark Bridge <j2eewebtier@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.keyczar;
+
+import java.util.ArrayList;
+import org.keyczar.enums.KeyStatus;
+import org.keyczar.exceptions.KeyNotFoundException;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.exceptions.NoPrimaryKeyException;
+import org.keyczar.interfaces.KeyczarReader;
+
+/**
+ * A view of one key version of a store, shown as the primary so a keyczar 
+ * built from it encrypts or signs with that version - only that version's key
+ * is read
+ * 
+ * Without a version it is a view of the primary only, eg. to encrypt without
+ * decrypting the rest of the store
+ * 
+ * @author Mark Bridge <j2eewebtier@gmail.com>
+ */
+class VersionReader implements KeyczarReader {
+    
+    private final KeyczarReader reader;
+    
+    /**
+     * null for the primary
+     */
+    private final Integer version;
+    
+    VersionReader(KeyczarReader reader) {
+        this.reader = reader;
+        this.version = null;
+    }
+    
+    VersionReader(KeyczarReader reader, int version) {
+        this.reader = reader;
+        this.version = version;
+    }
+    
+    public String getMetadata() throws KeyczarException {
+        
+        KeyMetadata metadata = KeyMetadata.read(reader.getMetadata());
+        
+        KeyVersion keyVersion = null;
+        for(KeyVersion other : new ArrayList<>(metadata.getVersions())) {
+            boolean keep = version == null 
+                    ? other.getStatus() == KeyStatus.PRIMARY 
+                    : other.getVersionNumber() == version;
+            if(keep) {
+                keyVersion = other;
+            } else {
+                metadata.removeVersion(other.getVersionNumber());
+            }
+        }
+        if(keyVersion == null) {
+            if(version == null) {
+                throw new NoPrimaryKeyException();
+            }
+            throw new KeyNotFoundException(new byte[0]);
+        }
+        keyVersion.setStatus(KeyStatus.PRIMARY);
+        
+        return metadata.toString();
+    }
+    
+    public String getKey(int version) throws KeyczarException {
+        return reader.getKey(version);
+    }
+    
+    public String getKey() throws KeyczarException {
+        return version == null ? reader.getKey() : reader.getKey(version);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2016, Mark Bridge <j2eewebtier@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.markbridge.util.crypt;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import org.junit.ClassRule;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.keyczar.KeySystem;
+import org.keyczar.RotationEvent;
+import org.keyczar.TemporaryKeyStores;
+
+/**
+ * On throwaway stores, as testLookupAfterRotate rotates the HMAC store
+ * 
+ * @author Mark Bridge <j2eewebtier@gmail.com>
+ */
+public class BlindIndexTest {
+    
+    @ClassRule
+    public static TemporaryKeyStores stores = new TemporaryKeyStores();
+    
+    public BlindIndexTest() {
+    }
+    
+    @Test
+    public void testToken() {
+        
+        BlindIndex index = new BlindIndex("email");
+        
+        String token = index.token("someone@example.com");
+        assertNotNull(token);
+        assertEquals(token, index.token("someone@example.com"));
+        assertNotEquals(token, index.token("other@example.com"));
+    }
+    
+    @Test
+    public void testColumns() {
+        
+        assertNotEquals(new BlindIndex("email").token("value"), new BlindIndex("name").token("value"));
+        assertNotEquals(new BlindIndex("a:").token("b"), new BlindIndex("a").token(":b"));
+    }
+    
+    @Test
+    public void testTokens() {
+        
+        BlindIndex index = new BlindIndex("email");
+        
+        List<String> tokens = index.tokens(Arrays.asList("one", "two", null));
+        assertEquals(3, tokens.size());
+        assertEquals(index.token("one"), tokens.get(0));
+        assertEquals(index.token("two"), tokens.get(1));
+        assertNull(tokens.get(2));
+    }
+    
+    /**
+     * A null is not indexed, and is not the string "null"
+     */
+    @Test
+    public void testNull() {
+        
+        BlindIndex index = new BlindIndex("email");
+        Map<Integer, Long> before = KeySystem.getEncryptCounts(KeySystem.hmacEncryptedStoreDirectory);
+        
+        assertNull(index.token(null));
+        assertTrue(index.lookupTokens(null).isEmpty());
+        assertEquals(before, KeySystem.getEncryptCounts(KeySystem.hmacEncryptedStoreDirectory));
+        
+        assertEquals(index.token("null"), index.lookupTokens("null").get(0));
+    }
+    
+    /**
+     * Rows indexed before a rotation are still found until re-indexed
+     */
+    @Test
+    public void testLookupAfterRotate() throws InterruptedException, ExecutionException {
+        
+        BlindIndex index = new BlindIndex("email");
+        
+        String before = index.token("someone@example.com");
+        assertEquals(before, index.lookupTokens("someone@example.com").get(0));
+        
+        try {
+            RotationEvent event = KeySystem.startRotationScheduler(60000, 0)
+                    .rotateNow(KeySystem.hmacEncryptedStoreDirectory).get();
+            assertTrue(event.isSuccess());
+        } finally {
+            KeySystem.shutdown();
+        }
+        
+        String after = index.token("someone@example.com");
+        assertNotEquals(before, after);
+        
+        List<String> lookup = index.lookupTokens("someone@example.com");
+        assertEquals(after, lookup.get(0));
+        assertTrue(lookup.contains(before));
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2016, Mark Bridge <j2eewebtier@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.markbridge.util.crypt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.keyczar.KeySystem;
+
+/**
+ *
+ * @author Mark Bridge <j2eewebtier@gmail.com>
+ */
+public class CryptServiceTest {
+    
+    private CryptService service;
+    
+    public CryptServiceTest() {
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        //the local public keys as destinations, so the local keys can decrypt
+        Map<String, String> destinations = new HashMap<>();
+        destinations.put("self", KeySystem.asymmetricPublicPlaintextStoreDirectory);
+        destinations.put("other", KeySystem.asymmetricPublicPlaintextStoreDirectory);
+        
+        service = new CryptService(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2, destinations);
+        service.start();
+    }
+    
+    @After
+    public void tearDown() {
+        service.stop(0);
+    }
+
+    @Test
+    public void testEncryptDecrypt() throws IOException {
+        
+        String text = "hello";
+        
+        String ciphertext = post("/localEncrypt", text);
+        assertNotEquals(text, ciphertext);
+        assertEquals(text, post("/localDecrypt", ciphertext));
+    }
+
+    @Test
+    public void testBatchEncryptDecrypt() throws IOException {
+        
+        List<String> values = Arrays.asList("hello", "a \"quoted\"\nvalue", "");
+        
+        String ciphertexts = post("/localEncrypt/batch", Json.toStringArray(values));
+        assertEquals(values.size(), Json.parseStringArray(ciphertexts).size());
+        
+        String plaintexts = post("/localDecrypt/batch", ciphertexts);
+        assertEquals(values, Json.parseStringArray(plaintexts));
+    }
+    
+    @Test
+    public void testRemoteEncrypt() throws IOException {
+        
+        String text = "hello";
+        
+        String ciphertext = post("/remoteEncrypt?destination=self", text);
+        assertEquals(text, post("/localDecrypt", ciphertext));
+        
+        String envelope = post("/remoteEncrypt?destination=self&destination=other", text);
+        assertEquals(text, new Crypt().openEnvelope(envelope));
+        
+        List<String> values = Arrays.asList("hello", "world");
+        String ciphertexts = post("/remoteEncrypt/batch?destination=self", Json.toStringArray(values));
+        assertEquals(values, Json.parseStringArray(post("/localDecrypt/batch", ciphertexts)));
+        
+        assertEquals(400, status("/remoteEncrypt?destination=unknown", text));
+        assertEquals(400, status("/remoteEncrypt", text));
+    }
+    
+    @Test
+    public void testBodyLimit() throws IOException {
+        
+        char[] text = new char[1024 * 1024 + 1];
+        Arrays.fill(text, 'a');
+        
+        assertEquals(413, status("/localEncrypt", new String(text)));
+        assertEquals(200, status("/localEncrypt", new String(text, 1, text.length - 1)));
+    }
+    
+    @Test
+    public void testBusy() throws IOException, InterruptedException {
+        
+        //2 worker threads, so 4 places - hold them all with bodies that never
+        //finish arriving
+        List<Socket> held = new ArrayList<>();
+        try {
+            for(int i = 0; i < 4; i++) {
+                Socket socket = new Socket(InetAddress.getLoopbackAddress(), service.getPort());
+                OutputStream out = socket.getOutputStream();
+                out.write(("POST /localEncrypt HTTP/1.1\r\nHost: localhost\r\n"
+                        + "Content-Length: 100\r\n\r\nhello").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                held.add(socket);
+            }
+            
+            int status = 200;
+            long end = System.currentTimeMillis() + 10000;
+            while(status == 200 && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+                status = status("/localEncrypt", "hello");
+            }
+            assertEquals(503, status);
+        } finally {
+            for(Socket socket : held) {
+                socket.close();
+            }
+        }
+        
+        //places are given back as the held requests fail
+        int status = 503;
+        long end = System.currentTimeMillis() + 10000;
+        while(status == 503 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+            status = status("/localEncrypt", "hello");
+        }
+        assertEquals(200, status);
+    }
+    
+    private String post(String path, String body) throws IOException {
+        
+        HttpURLConnection connection = send(path, body);
+        assertEquals(200, connection.getResponseCode());
+        
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                response.write(buffer, 0, read);
+            }
+        }
+        
+        return new String(response.toByteArray(), StandardCharsets.UTF_8);
+    }
+    
+    private int status(String path, String body) throws IOException {
+        return send(path, body).getResponseCode();
+    }
+    
+    private HttpURLConnection send(String path, String body) throws IOException {
+        
+        URL url = new URL("http", InetAddress.getLoopbackAddress().getHostAddress(), service.getPort(), path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        
+        return connection;
+    }
+}
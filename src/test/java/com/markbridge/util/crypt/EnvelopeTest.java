@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2016, Mark Bridge <j2eewebtier@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.markbridge.util.crypt;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import org.keyczar.Crypter;
+import org.keyczar.Encrypter;
+import org.keyczar.KeyczarTool;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.util.Base64Coder;
+
+/**
+ * Recipients are plain symmetric stores so the test does not touch the 
+ * configured ones
+ * 
+ * @author Mark Bridge <j2eewebtier@gmail.com>
+ */
+public class EnvelopeTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private Crypter first;
+    private Crypter second;
+    private Crypter other;
+    
+    public EnvelopeTest() {
+    }
+    
+    @Before
+    public void setUp() throws IOException, KeyczarException {
+        first = new Crypter(store("first"));
+        second = new Crypter(store("second"));
+        other = new Crypter(store("other"));
+    }
+    
+    @Test
+    public void testSealOpen() throws KeyczarException, GeneralSecurityException {
+        
+        String text = "hello";
+        String envelope = Envelope.seal(text, Arrays.<Encrypter>asList(first, second));
+        
+        assertEquals(text, Envelope.open(envelope, first));
+        assertEquals(text, Envelope.open(envelope, second));
+    }
+    
+    @Test(expected = KeyczarException.class)
+    public void testNotRecipient() throws KeyczarException, GeneralSecurityException {
+        
+        String envelope = Envelope.seal("hello", Arrays.<Encrypter>asList(first, second));
+        Envelope.open(envelope, other);
+    }
+    
+    @Test(expected = GeneralSecurityException.class)
+    public void testModifiedPayload() throws KeyczarException, GeneralSecurityException {
+        
+        String envelope = Envelope.seal("hello", Arrays.<Encrypter>asList(first, second));
+        
+        int split = envelope.lastIndexOf('.') + 1;
+        byte[] payload = Base64Coder.decodeWebSafe(envelope.substring(split));
+        payload[payload.length - 1] ^= 1;
+        
+        Envelope.open(envelope.substring(0, split) + Base64Coder.encodeWebSafe(payload), first);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoRecipients() throws KeyczarException, GeneralSecurityException {
+        Envelope.seal("hello", Collections.<Encrypter>emptyList());
+    }
+    
+    /**
+     * @param name
+     * @return location of a new plain store with a primary key
+     */
+    private String store(String name) throws IOException {
+        
+        String location = folder.newFolder(name).getPath() + File.separator;
+        
+        KeyczarTool.main(new String[] {"create", "--location=" + location, "--purpose=crypt", "--name=" + name});
+        KeyczarTool.main(new String[] {"addKey", "--location=" + location, "--status=primary"});
+        
+        return location;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2016, Mark Bridge <j2eewebtier@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.markbridge.util.crypt;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import org.keyczar.exceptions.KeyczarException;
+
+/**
+ *
+ * @author Mark Bridge <j2eewebtier@gmail.com>
+ */
+public class FieldCryptTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    public FieldCryptTest() {
+    }
+    
+    /**
+     * Unselected fields keep their quoting and line breaks, selected ones 
+     * with commas, quotes and line breaks in them come back the same
+     */
+    @Test
+    public void testCsv() throws IOException, KeyczarException {
+        
+        String csv = "id,name,note\r\n"
+                + "1,\"Smith, John\",\"keep, \"\"as\"\" is\"\r\n"
+                + "2,\"two\r\nlines\",\"quoted\"\n"
+                + "3,,\"also\nkeep\"\r\n"
+                + "4,\"say \"\"hi\"\"\",plain";
+        
+        FieldCrypt fieldCrypt = new FieldCrypt(FieldCrypt.Format.CSV, Collections.singleton("name"));
+        String encrypted = run(fieldCrypt, csv, true);
+        String[] lines = encrypted.split("\r\n|\n", -1);
+        
+        assertEquals("id,name,note", lines[0]);
+        assertTrue(lines[1].startsWith("1,"));
+        assertTrue(lines[1].endsWith(",\"keep, \"\"as\"\" is\""));
+        assertFalse(encrypted.contains("Smith"));
+        assertTrue(encrypted.contains(",\"quoted\"\n3,,\"also\nkeep\"\r\n"));
+        assertFalse(encrypted.contains("lines"));
+        assertTrue(encrypted.endsWith(",plain"));
+        
+        assertEquals(csv, run(fieldCrypt, encrypted, false));
+    }
+    
+    @Test
+    public void testJsonLines() throws IOException, KeyczarException {
+        
+        String json = "{\"id\": 1, \"name\": \"a \\\"quoted\\\" \\\\ value\\n\", \"note\":\"keep\"}\n"
+                + "{\"id\":2,\"name\":null,\"other\":{\"name\":\"nested\"}}\r\n"
+                + "\n"
+                + "{\"name\" : 42, \"list\": [\"x\", 1]}";
+        
+        FieldCrypt fieldCrypt = new FieldCrypt(FieldCrypt.Format.JSON_LINES, Collections.singleton("name"));
+        String encrypted = run(fieldCrypt, json, true);
+        
+        assertFalse(encrypted.contains("quoted"));
+        assertTrue(encrypted.startsWith("{\"id\": 1, \"name\": \""));
+        assertTrue(encrypted.contains(", \"note\":\"keep\"}\n"));
+        assertTrue(encrypted.contains("{\"id\":2,\"name\":null,\"other\":{\"name\":\"nested\"}}\r\n\n"));
+        assertTrue(encrypted.endsWith("{\"name\" : 42, \"list\": [\"x\", 1]}"));
+        
+        assertEquals(json, run(fieldCrypt, encrypted, false));
+    }
+    
+    /**
+     * More records than batchSize * threads so batches are in flight together
+     */
+    @Test
+    public void testOrder() throws IOException, KeyczarException {
+        
+        StringBuilder csv = new StringBuilder("id,value\n");
+        for(int i = 0; i < 100; i++) {
+            csv.append(i).append(",value ").append(i).append('\n');
+        }
+        
+        FieldCrypt fieldCrypt = new FieldCrypt(FieldCrypt.Format.CSV, Collections.singleton("value"));
+        fieldCrypt.setBatchSize(3);
+        fieldCrypt.setThreads(4);
+        
+        String encrypted = run(fieldCrypt, csv.toString(), true);
+        String[] lines = encrypted.split("\n");
+        assertEquals(101, lines.length);
+        for(int i = 0; i < 100; i++) {
+            assertTrue(lines[i + 1].startsWith(i + ","));
+        }
+        
+        assertEquals(csv.toString(), run(fieldCrypt, encrypted, false));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingField() throws IOException, KeyczarException {
+        
+        FieldCrypt fieldCrypt = new FieldCrypt(FieldCrypt.Format.CSV, Arrays.asList("name", "missing"));
+        run(fieldCrypt, "id,name\n1,a\n", true);
+    }
+    
+    @Test
+    public void testSameFile() throws IOException, KeyczarException {
+        
+        String csv = "id,name\n1,a\n";
+        Path file = folder.newFile().toPath();
+        Files.write(file, csv.getBytes(StandardCharsets.UTF_8));
+        
+        FieldCrypt fieldCrypt = new FieldCrypt(FieldCrypt.Format.CSV, Collections.singleton("name"));
+        try {
+            fieldCrypt.encrypt(file, file);
+            fail();
+        } catch(IllegalArgumentException ex) {
+            //expected
+        }
+        assertEquals(csv, new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * A bad ciphertext part way through leaves the existing target and no 
+     * temporary file
+     */
+    @Test
+    public void testFailureKeepsTarget() throws IOException, KeyczarException {
+        
+        FieldCrypt fieldCrypt = new FieldCrypt(FieldCrypt.Format.CSV, Collections.singleton("name"));
+        fieldCrypt.setBatchSize(1);
+        
+        StringBuilder csv = new StringBuilder(run(fieldCrypt, "id,name\n1,a\n2,b\n", true));
+        csv.append("3,not a ciphertext\n");
+        
+        Path source = folder.newFile().toPath();
+        Files.write(source, csv.toString().getBytes(StandardCharsets.UTF_8));
+        Path target = folder.newFile().toPath();
+        Files.write(target, "existing".getBytes(StandardCharsets.UTF_8));
+        
+        try {
+            fieldCrypt.decrypt(source, target);
+            fail();
+        } catch(KeyczarException ex) {
+            //expected
+        }
+        assertEquals("existing", new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+        for(String name : folder.getRoot().list()) {
+            assertFalse(name, name.startsWith(target.getFileName() + "."));
+        }
+    }
+    
+    private String run(FieldCrypt fieldCrypt, String content, boolean encrypt) 
+            throws IOException, KeyczarException {
+        
+        Path source = folder.newFile().toPath();
+        Path target = folder.newFile().toPath();
+        Files.write(source, content.getBytes(StandardCharsets.UTF_8));
+        
+        if(encrypt) {
+            fieldCrypt.encrypt(source, target);
+        } else {
+            fieldCrypt.decrypt(source, target);
+        }
+        
+        return new String(Files.readAllBytes(target), StandardCharsets.UTF_8);
+    }
+}
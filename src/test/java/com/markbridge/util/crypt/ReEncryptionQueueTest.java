@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2016, Mark Bridge <j2eewebtier@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.markbridge.util.crypt;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.keyczar.Crypter;
+import org.keyczar.KeySystem;
+import org.keyczar.exceptions.KeyczarException;
+
+/**
+ * N.B. assumes have at least two keys in the asymmetric store
+ * 
+ * @author Mark Bridge <j2eewebtier@gmail.com>
+ */
+public class ReEncryptionQueueTest {
+    
+    private final Crypt crypt = new Crypt();
+    
+    public ReEncryptionQueueTest() {
+    }
+    
+    @After
+    public void tearDown() {
+        crypt.disableReEncryption();
+    }
+    
+    @Test
+    public void testReEncrypt() throws KeyczarException, InterruptedException {
+        
+        String store = KeySystem.asymmetricEncryptedStoreDirectory;
+        KeySystem.getInstance();
+        int primary = KeySystem.getCurrentPrimary(store, true);
+        int stale = KeySystem.getActiveVersions(store).get(1);
+        
+        String text = "hello";
+        String staleCiphertext = crypt.localEncrypt(text, stale);
+        
+        final AtomicReference<String[]> written = new AtomicReference<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        ReEncryptionQueue queue = crypt.enableReEncryption(new ReEncryptionQueue.WriteBack() {
+            public void write(String staleCiphertext, String freshCiphertext) {
+                written.set(new String[] {staleCiphertext, freshCiphertext});
+                latch.countDown();
+            }
+        }, 10);
+        
+        assertEquals(text, crypt.localDecrypt(staleCiphertext));
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        
+        assertEquals(staleCiphertext, written.get()[0]);
+        Crypter crypter = KeySystem.getInstance().getCrypter(store, true);
+        assertEquals(primary, KeySystem.getKeyVersion(crypter, written.get()[1]).intValue());
+        assertEquals(text, crypt.localDecrypt(written.get()[1]));
+        
+        //counted after the write back returns
+        for(int i = 0; i < 100 && queue.getReEncrypted() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, queue.getReEncrypted());
+    }
+    
+    /**
+     * The write back holds the worker so offers stay queued
+     */
+    @Test
+    public void testDuplicatesAndDrops() throws InterruptedException {
+        
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ReEncryptionQueue queue = crypt.enableReEncryption(new ReEncryptionQueue.WriteBack() {
+            public void write(String staleCiphertext, String freshCiphertext) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 1);
+        
+        try {
+            assertTrue(queue.offer("a", "x"));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            
+            assertFalse(queue.offer("a", "x"));
+            assertTrue(queue.offer("b", "y"));
+            assertFalse(queue.offer("b", "y"));
+            assertFalse(queue.offer("c", "z"));
+            
+            assertEquals(1, queue.getQueued());
+            assertEquals(2, queue.getDuplicates());
+            assertEquals(1, queue.getDropped());
+        } finally {
+            release.countDown();
+        }
+    }
+    
+    @Test
+    public void testCapacity() {
+        try {
+            crypt.enableReEncryption(null, 0);
+            fail();
+        } catch(IllegalArgumentException ex) {
+            assertEquals("Re-encryption queue capacity must be positive: 0", ex.getMessage());
+        }
+    }
+}
@@ -25,6 +25,11 @@
  */
 package org.keyczar;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TreeSet;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -124,4 +129,233 @@ public class KeySystemTest {
         assertEquals(resetPrimary, resetPrimaryCheck);
     }
     
+    @Test
+    public void testKeyVersion() throws KeyczarException {
+        
+        KeySystem instance = KeySystem.getInstance();
+        
+        Crypter crypter = instance.getCrypter(symmetricEncryptedStoreDirectory, true);
+        String ciphertext = crypter.encrypt("hello");
+        
+        int version = KeySystem.getKeyVersion(crypter, ciphertext);
+        assertEquals(KeySystem.getPrimaryVersion(crypter).intValue(), version);
+        assertEquals(KeySystem.getCurrentPrimary(symmetricEncryptedStoreDirectory, true).intValue(), version);
+        
+        long before = KeySystem.getDecryptCounts(symmetricEncryptedStoreDirectory)
+                .getOrDefault(version, 0L);
+        KeySystem.recordDecrypt(symmetricEncryptedStoreDirectory, version);
+        long after = KeySystem.getDecryptCounts(symmetricEncryptedStoreDirectory).get(version);
+        assertEquals(before + 1, after);
+    }
+    
+    @Test
+    public void testKeyHolderWipe() throws KeyczarException {
+        
+        KeySystem.getInstance();
+        KeyHolder holder = new KeyHolder(symmetricEncryptedStoreDirectory, privateDirectory);
+        
+        String key = holder.getKey();
+        assertNotNull(key);
+        assertEquals(key, holder.getKey());
+        
+        int primary = KeySystem.getCurrentPrimary(symmetricEncryptedStoreDirectory, true);
+        ByteBuffer buffer = holder.getBuffer(primary);
+        assertFalse(zeroed(buffer));
+        
+        holder.wipe();
+        assertTrue(zeroed(buffer));
+        assertNull(holder.getBuffer(primary));
+        try {
+            holder.getKey();
+            fail("Read from a wiped holder");
+        } catch(KeyczarException ex) {
+            assertNull(holder.getBuffer(primary));
+        }
+    }
+    
+    /**
+     * A crypter still in use when its holder is wiped does not refill it
+     * @throws KeyczarException 
+     */
+    @Test
+    public void testWipeDropsCrypterKeys() throws KeyczarException {
+        
+        KeySystem.getInstance();
+        KeyHolder holder = new KeyHolder(symmetricEncryptedStoreDirectory, privateDirectory);
+        Crypter crypter = holder.getCrypter();
+        String ciphertext = crypter.encrypt("hello");
+        assertEquals("hello", crypter.decrypt(ciphertext));
+        
+        holder.wipe();
+        assertTrue(holder.getDecryptedVersions().isEmpty());
+        try {
+            crypter.decrypt(ciphertext);
+            fail("Decrypted with a wiped crypter");
+        } catch(KeyczarException ex) {
+            assertTrue(holder.getDecryptedVersions().isEmpty());
+        }
+        try {
+            crypter.encrypt("hello");
+            fail("Encrypted with a wiped crypter");
+        } catch(KeyczarException ex) {
+            assertTrue(holder.getDecryptedVersions().isEmpty());
+        }
+    }
+    
+    /**
+     * Adds a key, makes it inactive and revokes it
+     * @throws KeyczarException 
+     */
+    @Test
+    public void testRevokeWipe() throws KeyczarException {
+        
+        KeySystem instance = KeySystem.getInstance();
+        
+        instance.addEncryptedKey(symmetricEncryptedStoreDirectory, false);
+        int version = 0;
+        for(int active : KeySystem.getActiveVersions(symmetricEncryptedStoreDirectory)) {
+            version = Math.max(version, active);
+        }
+        instance.demoteKey(symmetricEncryptedStoreDirectory, version, true);
+        
+        KeyHolder holder = instance.getHolder(symmetricEncryptedStoreDirectory);
+        holder.getKey(version);
+        ByteBuffer buffer = holder.getBuffer(version);
+        assertFalse(zeroed(buffer));
+        
+        instance.revokeKey(symmetricEncryptedStoreDirectory, version, true);
+        assertTrue(zeroed(buffer));
+        assertNull(holder.getBuffer(version));
+    }
+    
+    @Test
+    public void testCachedCrypter() throws KeyczarException {
+        
+        KeySystem instance = KeySystem.getInstance();
+        
+        Crypter crypter = instance.getCrypter(symmetricEncryptedStoreDirectory, true);
+        assertSame(crypter, instance.getCrypter(symmetricEncryptedStoreDirectory, true));
+        
+        instance.getHolder(symmetricEncryptedStoreDirectory).wipe();
+        assertNotSame(crypter, instance.getCrypter(symmetricEncryptedStoreDirectory, true));
+    }
+    
+    private static boolean zeroed(ByteBuffer buffer) {
+        for(int i = 0; i < buffer.capacity(); i++) {
+            if(buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    @Test
+    public void testSignDeterministic() throws KeyczarException {
+        
+        KeySystem instance = KeySystem.getInstance();
+        
+        Signer signer = instance.getSigner(hmacEncryptedStoreDirectory, true);
+        
+        String s1 = signer.sign("hello");
+        String s2 = signer.sign("hello");
+        String s3 = signer.sign("goodbye");
+        
+        assertEquals(s1, s2);
+        assertNotEquals(s1, s3);
+        
+        int primary = KeySystem.getCurrentPrimary(hmacEncryptedStoreDirectory, true);
+        assertEquals(primary, KeySystem.getActiveVersions(hmacEncryptedStoreDirectory).get(0).intValue());
+        assertEquals(s1, instance.getSigner(hmacEncryptedStoreDirectory, true, primary).sign("hello"));
+    }
+    
+    /**
+     * N.B. assumes have at least two keys in store
+     * @throws KeyczarException 
+     */
+    @Test
+    public void testLazyDecrypt() throws KeyczarException {
+        
+        KeySystem instance = KeySystem.getInstance();
+        
+        int version = KeySystem.getActiveVersions(symmetricEncryptedStoreDirectory).get(1);
+        Encrypter encrypter = new Encrypter(new VersionReader(
+                new KeyHolder(symmetricEncryptedStoreDirectory, privateDirectory), version));
+        
+        String text = "hello";
+        String ciphertext = encrypter.encrypt(text);
+        
+        int primary = KeySystem.getCurrentPrimary(symmetricEncryptedStoreDirectory, true);
+        KeyHolder holder = new KeyHolder(symmetricEncryptedStoreDirectory, privateDirectory);
+        Crypter crypter = new LazyCrypter(holder);
+        assertEquals(Collections.singleton(primary), holder.getDecryptedVersions());
+        
+        assertEquals(text, crypter.decrypt(ciphertext));
+        assertTrue(holder.getDecryptedVersions().contains(version));
+        assertEquals(version, KeySystem.getKeyVersion(crypter, ciphertext).intValue());
+        
+        Crypter shared = instance.getCrypter(symmetricEncryptedStoreDirectory, true);
+        assertEquals(text, shared.decrypt(ciphertext));
+        assertEquals(version, KeySystem.getKeyVersion(shared, ciphertext).intValue());
+    }
+    
+    /**
+     * Once each version has been read its hash is indexed, a later holder 
+     * (eg. after a restart) reads only the version a ciphertext needs and 
+     * nothing for a hash the store does not have
+     * @throws KeyczarException 
+     */
+    @Test
+    public void testHashIndex() throws KeyczarException {
+        
+        KeySystem.getInstance();
+        
+        KeyHolder holder = new KeyHolder(symmetricEncryptedStoreDirectory, privateDirectory);
+        Crypter crypter = new LazyCrypter(holder);
+        String ciphertext = null;
+        int version = 0;
+        for(KeyVersion keyVersion : KeyMetadata.read(holder.getMetadata()).getVersions()) {
+            version = keyVersion.getVersionNumber();
+            ciphertext = new Encrypter(new VersionReader(holder, version)).encrypt("hello");
+            assertEquals("hello", crypter.decrypt(ciphertext));
+        }
+        
+        int primary = KeySystem.getCurrentPrimary(symmetricEncryptedStoreDirectory, true);
+        KeyHolder restarted = new KeyHolder(symmetricEncryptedStoreDirectory, privateDirectory);
+        Crypter lazy = new LazyCrypter(restarted);
+        
+        String foreign = new Crypter(privateDirectory).encrypt("hello");
+        for(int i = 0; i < 2; i++) {
+            try {
+                lazy.decrypt(foreign);
+                fail("Decrypted with another store's key");
+            } catch(KeyczarException ex) {
+                assertEquals(Collections.singleton(primary), restarted.getDecryptedVersions());
+            }
+        }
+        
+        assertEquals("hello", lazy.decrypt(ciphertext));
+        assertEquals(new TreeSet<>(Arrays.asList(primary, version)), restarted.getDecryptedVersions());
+    }
+    
+    @Test
+    public void testEncryptCounts() {
+        
+        String store = "countsOnly";
+        
+        KeySystem.recordEncrypt(store, 1, "hello");
+        KeySystem.recordEncrypt(store, 1, "h\u00e9llo");
+        KeySystem.recordEncrypt(store, 2, "hello");
+        
+        assertEquals(2L, KeySystem.getEncryptCounts(store).get(1).longValue());
+        assertEquals(11L, KeySystem.getEncryptedBytes(store).get(1).longValue());
+        assertEquals(1L, KeySystem.getEncryptCounts(store).get(2).longValue());
+    }
+    
+    @Test
+    public void testUtf8Length() {
+        for(String value : new String[] {"", "hello", "h\u00e9llo", "\u20ac", "\ud83d\ude00", "a\ud83d", "\ude00b"}) {
+            assertEquals(value.getBytes(StandardCharsets.UTF_8).length, KeySystem.utf8Length(value));
+        }
+    }
+    
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2016, Mark Bridge <j2eewebtier@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.keyczar;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+import org.keyczar.enums.KeyStatus;
+import org.keyczar.exceptions.KeyczarException;
+import org.keyczar.util.Base64Coder;
+
+/**
+ * Pins the package private keyczar internals KeySystem, KeyHolder and 
+ * LazyCrypter rely on - the ciphertext header, Keyczar.getKey(byte[]), 
+ * versionMap, primaryVersion and KeyczarKey.hash() - so a keyczar version that
+ * changes them fails here rather than in key lookups
+ * 
+ * Uses a plain store of its own, not the configured ones
+ * 
+ * @author Mark Bridge <j2eewebtier@gmail.com>
+ */
+public class KeyczarInternalsTest {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    private String location;
+    
+    public KeyczarInternalsTest() {
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        
+        location = folder.newFolder("internals").getPath() + File.separator;
+        
+        KeyczarTool.main(new String[] {"create", "--location=" + location, "--purpose=crypt", "--name=internals"});
+        KeyczarTool.main(new String[] {"addKey", "--location=" + location, "--status=primary"});
+        KeyczarTool.main(new String[] {"addKey", "--location=" + location, "--status=active"});
+    }
+    
+    /**
+     * A ciphertext starts with a version byte then the 4 byte hash of the key
+     * it was encrypted under, getKey(byte[]) finds that key by it
+     * @throws KeyczarException 
+     */
+    @Test
+    public void testHeaderKeyHash() throws KeyczarException {
+        
+        Crypter crypter = new Crypter(location);
+        byte[] ciphertext = Base64Coder.decodeWebSafe(crypter.encrypt("hello"));
+        
+        assertEquals(5, Keyczar.HEADER_SIZE);
+        byte[] hash = Arrays.copyOfRange(ciphertext, 1, Keyczar.HEADER_SIZE);
+        
+        KeyczarKey key = crypter.getKey(hash);
+        assertSame(crypter.getPrimaryKey(), key);
+        assertArrayEquals(hash, key.hash());
+        assertEquals(crypter.primaryVersion.getVersionNumber(), 
+                KeySystem.getKeyVersion(crypter, crypter.encrypt("hello")).intValue());
+    }
+    
+    /**
+     * versionMap has every version of the metadata, primaryVersion is the 
+     * primary
+     * @throws KeyczarException 
+     */
+    @Test
+    public void testVersionMap() throws KeyczarException {
+        
+        Crypter crypter = new Crypter(location);
+        KeyMetadata metadata = KeyMetadata.read(new KeyczarFileReader(location).getMetadata());
+        
+        Set<Integer> expected = new TreeSet<>();
+        int primary = -1;
+        for(KeyVersion version : metadata.getVersions()) {
+            expected.add(version.getVersionNumber());
+            if(version.getStatus() == KeyStatus.PRIMARY) {
+                primary = version.getVersionNumber();
+            }
+        }
+        
+        Set<Integer> actual = new TreeSet<>();
+        for(Map.Entry<KeyVersion, KeyczarKey> entry : crypter.versionMap.entrySet()) {
+            actual.add(entry.getKey().getVersionNumber());
+            assertSame(entry.getValue(), crypter.getKey(entry.getValue().hash()));
+        }
+        
+        assertEquals(2, expected.size());
+        assertEquals(expected, actual);
+        assertEquals(primary, crypter.primaryVersion.getVersionNumber());
+        assertEquals(primary, KeySystem.getPrimaryVersion(crypter).intValue());
+    }
+    
+    /**
+     * A VersionReader view makes its version the primary, the key hash is that
+     * of the version in the whole store
+     * @throws KeyczarException 
+     */
+    @Test
+    public void testVersionView() throws KeyczarException {
+        
+        Crypter crypter = new Crypter(location);
+        for(Map.Entry<KeyVersion, KeyczarKey> entry : crypter.versionMap.entrySet()) {
+            int version = entry.getKey().getVersionNumber();
+            Crypter view = new Crypter(new VersionReader(new KeyczarFileReader(location), version));
+            assertEquals(version, view.primaryVersion.getVersionNumber());
+            assertArrayEquals(entry.getValue().hash(), view.getPrimaryKey().hash());
+            assertEquals("hello", crypter.decrypt(view.encrypt("hello")));
+        }
+    }
+}
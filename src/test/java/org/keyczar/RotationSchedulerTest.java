@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2016, Mark Bridge <j2eewebtier@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.keyczar;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.keyczar.KeySystem.*;
+import org.keyczar.exceptions.KeyczarException;
+
+/**
+ * Rotates throwaway stores, not the shared test stores
+ * 
+ * @author Mark Bridge <j2eewebtier@gmail.com>
+ */
+public class RotationSchedulerTest {
+    
+    @Rule
+    public TemporaryKeyStores stores = new TemporaryKeyStores();
+    
+    private RotationScheduler scheduler;
+    
+    public RotationSchedulerTest() {
+    }
+    
+    @After
+    public void tearDown() {
+        if(scheduler != null) {
+            scheduler.stop();
+        }
+    }
+    
+    @Test
+    public void testRotateOnEncryptions() throws KeyczarException, InterruptedException {
+        
+        RotationPolicy policy = new RotationPolicy();
+        policy.setMaxEncryptions(1);
+        
+        long start = System.currentTimeMillis();
+        RotationEvent event = rotateOnce(symmetricEncryptedStoreDirectory, policy, "hello");
+        
+        assertEquals("encryptions", event.getReason());
+        assertTrue(getCreated(symmetricEncryptedStoreDirectory, event.getNewVersion()) >= start);
+    }
+    
+    @Test
+    public void testRotateOnBytes() throws KeyczarException, InterruptedException {
+        
+        RotationPolicy policy = new RotationPolicy();
+        policy.setMaxBytes(10);
+        
+        RotationEvent event = rotateOnce(hmacEncryptedStoreDirectory, policy, "ten bytes!");
+        
+        assertEquals("bytes", event.getReason());
+    }
+    
+    /**
+     * Only stores KeySystem adds keys to can be rotated
+     */
+    @Test
+    public void testPolicyStores() {
+        
+        scheduler = new RotationScheduler(60000, 0);
+        for(String store : new String[] {privateDirectory, symmetricEncryptedStoreDirectory, 
+                asymmetricEncryptedStoreDirectory, hmacEncryptedStoreDirectory}) {
+            scheduler.setPolicy(store, new RotationPolicy());
+        }
+        
+        for(String store : new String[] {asymmetricPublicPlaintextStoreDirectory, "elsewhere/"}) {
+            try {
+                scheduler.setPolicy(store, new RotationPolicy());
+                fail("Policy set for " + store);
+            } catch(IllegalArgumentException ex) {
+                assertTrue(ex.getMessage().contains(store));
+            }
+            try {
+                scheduler.rotateNow(store);
+                fail("Rotated " + store);
+            } catch(IllegalArgumentException ex) {
+                assertTrue(ex.getMessage().contains(store));
+            }
+        }
+    }
+    
+    /**
+     * Puts the primary over the policy limit with one encrypt and checks it is
+     * rotated once only, the new primary starts from zero
+     */
+    private RotationEvent rotateOnce(String storeDirectory, RotationPolicy policy, String plaintext) 
+            throws KeyczarException, InterruptedException {
+        
+        KeySystem.getInstance();
+        int prior = getCurrentPrimary(storeDirectory, true);
+        
+        final CountDownLatch rotated = new CountDownLatch(1);
+        scheduler = new RotationScheduler(10, 0.5);
+        scheduler.addListener(new RotationScheduler.Listener() {
+            public void rotated(RotationEvent event) {
+                rotated.countDown();
+            }
+        });
+        scheduler.setPolicy(storeDirectory, policy);
+        
+        recordEncrypt(storeDirectory, prior, plaintext);
+        scheduler.start();
+        
+        assertTrue(rotated.await(10, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        
+        assertEquals(1, scheduler.getEvents().size());
+        RotationEvent event = scheduler.getEvents().get(0);
+        assertTrue(event.isSuccess());
+        assertEquals(prior, event.getPriorVersion());
+        assertEquals(getCurrentPrimary(storeDirectory, true).intValue(), event.getNewVersion());
+        assertNotEquals(prior, event.getNewVersion());
+        
+        return event;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2016, Mark Bridge <j2eewebtier@gmail.com>
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.keyczar;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.rules.ExternalResource;
+import org.junit.rules.TemporaryFolder;
+import org.keyczar.exceptions.KeyczarException;
+
+/**
+ * Points KeySystem at new stores in a temporary folder for the test, and back
+ * at the configured ones after - for tests that rotate or add keys, so the
+ * shared test stores are left as they were
+ * 
+ * Build anything that keeps a store directory (Crypt, BlindIndex) inside the
+ * test, after the stores are switched
+ * 
+ * @author Mark Bridge <j2eewebtier@gmail.com>
+ */
+public class TemporaryKeyStores extends ExternalResource {
+    
+    private final TemporaryFolder folder = new TemporaryFolder();
+    
+    private String privateDirectory;
+    private String symmetricEncryptedStoreDirectory;
+    private String asymmetricEncryptedStoreDirectory;
+    private String asymmetricPublicPlaintextStoreDirectory;
+    private String hmacEncryptedStoreDirectory;
+    
+    @Override
+    protected void before() throws IOException, KeyczarException {
+        
+        folder.create();
+        
+        KeySystem instance = KeySystem.getInstance();
+        
+        privateDirectory = KeySystem.privateDirectory;
+        symmetricEncryptedStoreDirectory = KeySystem.symmetricEncryptedStoreDirectory;
+        asymmetricEncryptedStoreDirectory = KeySystem.asymmetricEncryptedStoreDirectory;
+        asymmetricPublicPlaintextStoreDirectory = KeySystem.asymmetricPublicPlaintextStoreDirectory;
+        hmacEncryptedStoreDirectory = KeySystem.hmacEncryptedStoreDirectory;
+        
+        KeySystem.reconfigure(directory("private"), directory("keys-sym"), directory("keys-asym"), 
+                directory("keys-pub"), directory("keys-hmac"));
+        instance.createStores();
+    }
+    
+    @Override
+    protected void after() {
+        KeySystem.reconfigure(privateDirectory, symmetricEncryptedStoreDirectory, 
+                asymmetricEncryptedStoreDirectory, asymmetricPublicPlaintextStoreDirectory, 
+                hmacEncryptedStoreDirectory);
+        folder.delete();
+    }
+    
+    private String directory(String name) {
+        return new File(folder.getRoot(), name).getPath() + File.separator;
+    }
+}